@@ -0,0 +1,207 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Additive increase, multiplicative decrease control of the number of
+ * records written to HBase at once, driven by the latency and failures of
+ * the calls the writers make.
+ *
+ * Every call that completes within its target latency raises the limit by
+ * 1/limit, i.e. by about one per round of in-flight writes. A slow or failed
+ * call cuts the limit by the decrease factor, at most once per decrease
+ * interval so a burst of slow calls from the same stall only counts once.
+ * Writers that find the limit reached wait in {@link #acquire()}, which
+ * slows the ToeThreads down to what the cluster absorbs instead of letting
+ * them pile up on the writer pool and fail.
+ *
+ * The controller also scales the flush batch size with the limit, so a
+ * struggling cluster gets smaller batches.
+ */
+public class AdmissionController {
+
+    private static final Logger LOG = Logger.getLogger(AdmissionController.class.getName());
+
+    /** HBase calls whose latency is observed */
+    public enum Operation {
+      GET, CHECK_AND_PUT, FLUSH
+    }
+
+    /** weight of a new observation in the moving latency averages */
+    private static final double EWMA_WEIGHT = 0.1;
+
+    private final int minInFlight;
+    private final int maxInFlight;
+    private final long[] targetLatencyNanos;
+    private final double decreaseFactor;
+    private final long decreaseIntervalNanos;
+    private final long maxBatchBytes;
+    private final long minBatchBytes;
+
+    private double limit;
+    private int inFlight = 0;
+    private long lastDecrease = 0;
+    private final double[] averageLatencyNanos =
+        new double[Operation.values().length];
+    private long successCount = 0;
+    private long failureCount = 0;
+    private long slowCount = 0;
+    private long waitCount = 0;
+
+    /**
+     * @param minInFlight lowest the limit goes
+     * @param maxInFlight highest the limit goes, and where it starts
+     * @param targetLatencyMs latency above which a get or checkAndPut counts
+     *          as congestion; flushes are allowed four times as long
+     * @param maxBatchBytes flush batch size at the maximum limit
+     */
+    public AdmissionController(final int minInFlight, final int maxInFlight,
+        final long targetLatencyMs, final long maxBatchBytes) {
+      this.minInFlight = Math.max(1, minInFlight);
+      this.maxInFlight = Math.max(this.minInFlight, maxInFlight);
+      long target = targetLatencyMs * 1000L * 1000L;
+      this.targetLatencyNanos = new long[] { target, target, 4 * target };
+      this.decreaseFactor = 0.5;
+      this.decreaseIntervalNanos = 4 * target;
+      this.maxBatchBytes = maxBatchBytes;
+      this.minBatchBytes = Math.min(maxBatchBytes, 64 * 1024);
+      this.limit = this.maxInFlight;
+    }
+
+    /**
+     * Wait until a write may start.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException {
+      boolean waited = false;
+      while (inFlight >= (int) limit) {
+        if (!waited) {
+          waited = true;
+          waitCount++;
+        }
+        wait(1000);
+      }
+      inFlight++;
+    }
+
+    /**
+     * A write started with {@link #acquire()} is done.
+     */
+    public synchronized void release() {
+      inFlight--;
+      notifyAll();
+    }
+
+    /**
+     * Observe the outcome of an HBase call.
+     *
+     * @param operation the kind of call
+     * @param latencyNanos how long it took
+     * @param success false if it failed
+     */
+    public synchronized void record(final Operation operation,
+        final long latencyNanos, final boolean success) {
+      int i = operation.ordinal();
+      averageLatencyNanos[i] = averageLatencyNanos[i] == 0 ? latencyNanos
+          : (1 - EWMA_WEIGHT) * averageLatencyNanos[i] + EWMA_WEIGHT * latencyNanos;
+      if (!success) {
+        failureCount++;
+        decrease();
+      } else if (latencyNanos > targetLatencyNanos[i]) {
+        successCount++;
+        slowCount++;
+        decrease();
+      } else {
+        successCount++;
+        limit = Math.min(maxInFlight, limit + 1 / limit);
+        notifyAll();
+      }
+    }
+
+    private void decrease() {
+      long now = nanoTime();
+      if (lastDecrease != 0 && now - lastDecrease < decreaseIntervalNanos) {
+        return;
+      }
+      lastDecrease = now;
+      double previous = limit;
+      limit = Math.max(minInFlight, limit * decreaseFactor);
+      if ((int) previous != (int) limit && LOG.isDebugEnabled()) {
+        LOG.debug("HBase write concurrency lowered from " + (int) previous
+            + " to " + (int) limit);
+      }
+    }
+
+    /**
+     * @return the time decrease intervals are measured with, in nanoseconds
+     */
+    protected long nanoTime() {
+      return System.nanoTime();
+    }
+
+    /**
+     * @return bytes a writer should buffer before flushing at the current
+     *         limit
+     */
+    public synchronized long getBatchBytes() {
+      return Math.max(minBatchBytes, (long) (maxBatchBytes * limit / maxInFlight));
+    }
+
+    public synchronized int getLimit() {
+      return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+      return inFlight;
+    }
+
+    public int getMaxInFlight() {
+      return maxInFlight;
+    }
+
+    /**
+     * @return moving average latency of the given call in milliseconds
+     */
+    public synchronized double getAverageLatencyMs(final Operation operation) {
+      return averageLatencyNanos[operation.ordinal()] / (1000.0 * 1000.0);
+    }
+
+    public synchronized long getSuccessCount() {
+      return successCount;
+    }
+
+    public synchronized long getFailureCount() {
+      return failureCount;
+    }
+
+    public synchronized long getSlowCount() {
+      return slowCount;
+    }
+
+    /**
+     * @return number of writes that had to wait to be admitted
+     */
+    public synchronized long getWaitCount() {
+      return waitCount;
+    }
+}
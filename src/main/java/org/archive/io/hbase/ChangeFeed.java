@@ -0,0 +1,384 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+import org.archive.util.ArchiveUtils;
+
+/**
+ * Append-only sidecar log of the url rows written during a crawl, so
+ * downstream jobs can process the delta instead of scanning the url table.
+ *
+ * Writers hand entries over with {@link #append(byte[], byte[], boolean)}:
+ * entries are queued and written in batches by a single background thread.
+ * If the queue is full the writer waits for room up to the maximum wait and
+ * then fails, so a feed that can't keep up slows the crawl down instead of
+ * losing entries silently.
+ *
+ * Entries go to gzipped segment files in the feed directory, one line per
+ * row:
+ *
+ * <pre>
+ * writeTimeMillis TAB W|R TAB rowKey TAB contentHashHex
+ * </pre>
+ *
+ * where W is a full record write and R a revisit marker, the row key is
+ * escaped with {@link Bytes#toStringBinary(byte[])} and the hash is "-" for
+ * records without content. A segment is written under a ".open" name and
+ * only renamed to its final ".gz" name once it is complete, after
+ * {@link #getMaxSegmentBytes()} uncompressed bytes or
+ * {@link #getRollIntervalMs()} milliseconds, whichever comes first.
+ *
+ * If entries are lost anyway, because an append failed or a segment couldn't
+ * be written, the next segment completed gets an empty marker file of the
+ * same name with {@link #INCOMPLETE_SUFFIX} appended. The feed is not
+ * complete for the time since the previous segment up to the end of the
+ * marked one, and consumers should fall back to a time range scan of the
+ * url table over it.
+ */
+public class ChangeFeed {
+
+    private static final Logger LOG = Logger.getLogger(ChangeFeed.class.getName());
+
+    public static final String SEGMENT_PREFIX = "changes-";
+    public static final String SEGMENT_SUFFIX = ".gz";
+    public static final String OPEN_SUFFIX = ".open";
+    public static final String INCOMPLETE_SUFFIX = ".incomplete";
+
+    /** default time an append waits for room in the queue */
+    public static final long DEFAULT_MAX_WAIT_MS = 10 * 1000;
+
+    private static final int MAX_BATCH = 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+    private final long maxSegmentBytes;
+    private final long rollIntervalMs;
+    private final long maxWaitMs;
+    private final BlockingQueue<Entry> queue;
+    private final Thread drainer;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** set while entries were lost since the last segment completed */
+    private final AtomicBoolean incomplete = new AtomicBoolean();
+
+    private volatile boolean closed = false;
+
+    // only touched by the drainer thread
+    private Writer segment;
+    private File segmentFile;
+    private long segmentBytes;
+    private long segmentOpened;
+    private int segmentSerial = 0;
+    private volatile String lastSegmentName;
+
+    private static class Entry {
+      final long time;
+      final byte[] rowKey;
+      final byte[] hashKey;
+      final boolean revisit;
+
+      Entry(long time, byte[] rowKey, byte[] hashKey, boolean revisit) {
+        this.time = time;
+        this.rowKey = rowKey;
+        this.hashKey = hashKey;
+        this.revisit = revisit;
+      }
+    }
+
+    public ChangeFeed(final File directory, final long maxSegmentBytes,
+        final long rollIntervalMs, final int queueCapacity) throws IOException {
+      this(directory, maxSegmentBytes, rollIntervalMs, queueCapacity,
+          DEFAULT_MAX_WAIT_MS);
+    }
+
+    /**
+     * @param directory where segments are written
+     * @param maxSegmentBytes uncompressed bytes after which a segment is
+     *          completed
+     * @param rollIntervalMs time after which a segment is completed
+     * @param queueCapacity entries queued for the background thread
+     * @param maxWaitMs how long an append waits for room in the queue
+     * @throws IOException if the directory can't be created
+     */
+    public ChangeFeed(final File directory, final long maxSegmentBytes,
+        final long rollIntervalMs, final int queueCapacity,
+        final long maxWaitMs) throws IOException {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Could not create change feed directory "
+            + directory);
+      }
+      this.directory = directory;
+      this.maxSegmentBytes = maxSegmentBytes;
+      this.rollIntervalMs = rollIntervalMs;
+      this.maxWaitMs = maxWaitMs;
+      this.queue = new ArrayBlockingQueue<Entry>(queueCapacity);
+      this.drainer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      }, "HBaseWriter change feed " + directory.getName());
+      this.drainer.setDaemon(true);
+      this.drainer.start();
+    }
+
+    /**
+     * Record that a url row was written, waiting up to the maximum wait for
+     * room in the queue.
+     *
+     * @param rowKey the url row key
+     * @param hashKey the content hash, or null
+     * @param revisit true if only a revisit marker was written
+     * @throws IOException if the entry was lost, because the feed is closed
+     *           or the queue stayed full; the feed is marked incomplete
+     */
+    public void append(final byte[] rowKey, final byte[] hashKey,
+        final boolean revisit) throws IOException {
+      boolean queued = false;
+      if (!closed) {
+        try {
+          queued = queue.offer(new Entry(System.currentTimeMillis(), rowKey,
+              hashKey, revisit), maxWaitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (queued) {
+        appended.incrementAndGet();
+        return;
+      }
+      markLost(1);
+      throw new IOException(closed ? "Change feed is closed"
+          : "Change feed queue stayed full for " + maxWaitMs + " ms");
+    }
+
+    /**
+     * Count entries that were never appended, e.g. the rest of a batch after
+     * an append failed, and mark the feed incomplete.
+     */
+    public void markLost(final int count) {
+      if (count <= 0) {
+        return;
+      }
+      incomplete.set(true);
+      LOG.warn("Change feed lost " + count + " entries, "
+          + dropped.addAndGet(count) + " so far");
+    }
+
+    /**
+     * Stop accepting entries, write out what is queued and complete the
+     * current segment.
+     */
+    public void close() {
+      closed = true;
+      drainer.interrupt();
+      try {
+        drainer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    public File getDirectory() {
+      return directory;
+    }
+
+    public long getMaxSegmentBytes() {
+      return maxSegmentBytes;
+    }
+
+    public long getRollIntervalMs() {
+      return rollIntervalMs;
+    }
+
+    public long getMaxWaitMs() {
+      return maxWaitMs;
+    }
+
+    public long getAppendedCount() {
+      return appended.get();
+    }
+
+    /**
+     * @return number of entries lost
+     */
+    public long getDroppedCount() {
+      return dropped.get();
+    }
+
+    /**
+     * @return true if entries were lost since the last segment completed
+     */
+    public boolean isIncomplete() {
+      return incomplete.get();
+    }
+
+    public int getQueueSize() {
+      return queue.size();
+    }
+
+    /**
+     * @return name of the last completed segment, or null if none yet
+     */
+    public String getLastSegmentName() {
+      return lastSegmentName;
+    }
+
+    private void drain() {
+      List<Entry> batch = new ArrayList<Entry>(MAX_BATCH);
+      while (true) {
+        try {
+          if (!closed) {
+            Entry first = queue.poll(1, TimeUnit.SECONDS);
+            if (first != null) {
+              batch.add(first);
+            }
+          }
+        } catch (InterruptedException e) {
+          // close() wakes us up, fall through to drain what is left
+        }
+        queue.drainTo(batch, MAX_BATCH - batch.size());
+        try {
+          if (!batch.isEmpty()) {
+            writeBatch(batch);
+          }
+          if (segment != null && (closed
+              || System.currentTimeMillis() - segmentOpened >= rollIntervalMs)) {
+            if (!closed || queue.isEmpty()) {
+              rollSegment();
+            }
+          }
+        } catch (IOException e) {
+          LOG.error("Failed to write " + batch.size()
+              + " change feed entries to " + segmentFile, e);
+          abandonSegment();
+          markLost(batch.size());
+        }
+        batch.clear();
+        if (closed && queue.isEmpty() && segment == null) {
+          if (incomplete.get()) {
+            // nothing left to write, but the loss must still be marked
+            try {
+              openSegment();
+              rollSegment();
+            } catch (IOException e) {
+              LOG.error("Failed to mark the change feed incomplete in "
+                  + directory, e);
+            }
+          }
+          return;
+        }
+      }
+    }
+
+    private void writeBatch(final List<Entry> batch) throws IOException {
+      if (segment == null) {
+        openSegment();
+      }
+      StringBuilder sb = new StringBuilder(128);
+      for (Entry entry : batch) {
+        sb.setLength(0);
+        sb.append(entry.time).append('\t');
+        sb.append(entry.revisit ? 'R' : 'W').append('\t');
+        sb.append(Bytes.toStringBinary(entry.rowKey)).append('\t');
+        if (entry.hashKey == null) {
+          sb.append('-');
+        } else {
+          appendHex(sb, entry.hashKey);
+        }
+        sb.append('\n');
+        segment.write(sb.toString());
+        segmentBytes += sb.length();
+      }
+      if (segmentBytes >= maxSegmentBytes) {
+        rollSegment();
+      }
+    }
+
+    private void openSegment() throws IOException {
+      String name = SEGMENT_PREFIX + ArchiveUtils.get17DigitDate() + "-"
+          + (segmentSerial++) + SEGMENT_SUFFIX;
+      segmentFile = new File(directory, name + OPEN_SUFFIX);
+      segment = new BufferedWriter(new OutputStreamWriter(
+          new GZIPOutputStream(new FileOutputStream(segmentFile), 64 * 1024),
+          "UTF-8"));
+      segmentBytes = 0;
+      segmentOpened = System.currentTimeMillis();
+    }
+
+    private void rollSegment() throws IOException {
+      segment.close();
+      segment = null;
+      String openName = segmentFile.getName();
+      File complete = new File(directory,
+          openName.substring(0, openName.length() - OPEN_SUFFIX.length()));
+      if (!segmentFile.renameTo(complete)) {
+        throw new IOException("Could not rename " + segmentFile + " to "
+            + complete);
+      }
+      if (incomplete.getAndSet(false)) {
+        File marker = new File(directory, complete.getName() + INCOMPLETE_SUFFIX);
+        if (!marker.createNewFile() && !marker.exists()) {
+          // try again on the next segment
+          incomplete.set(true);
+          LOG.error("Could not create " + marker);
+        }
+      }
+      lastSegmentName = complete.getName();
+      segmentFile = null;
+    }
+
+    private void abandonSegment() {
+      if (segment != null) {
+        try {
+          segment.close();
+        } catch (IOException e) {
+          // already failing, the .open file is left for inspection
+        }
+      }
+      segment = null;
+      segmentFile = null;
+    }
+
+    static void appendHex(final StringBuilder sb, final byte[] bytes) {
+      for (byte b : bytes) {
+        sb.append(HEX[(b >> 4) & 0x0f]).append(HEX[b & 0x0f]);
+      }
+    }
+}
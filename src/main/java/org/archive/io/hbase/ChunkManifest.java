@@ -0,0 +1,92 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * The ordered list of chunks a document was split into, as stored in the
+ * manifest column of its content row: for each chunk its SHA1 hash, which
+ * is the content row key of the chunk, followed by its length as an int.
+ */
+public class ChunkManifest {
+
+    /** length of a SHA1 hash */
+    public static final int HASH_LENGTH = 20;
+
+    private static final int ENTRY_LENGTH = HASH_LENGTH + Bytes.SIZEOF_INT;
+
+    private final byte[] manifest;
+
+    /**
+     * @throws IllegalArgumentException if the bytes aren't a manifest
+     */
+    public ChunkManifest(final byte[] manifest) {
+      if (manifest.length % ENTRY_LENGTH != 0) {
+        throw new IllegalArgumentException("Bad chunk manifest length "
+            + manifest.length);
+      }
+      this.manifest = manifest;
+    }
+
+    /**
+     * Encode the manifest of chunks.
+     *
+     * @param hashKeys the chunk hashes, in document order
+     * @param lengths the chunk lengths
+     */
+    public static byte[] encode(final List<byte[]> hashKeys,
+        final int[] lengths) {
+      byte[] manifest = new byte[hashKeys.size() * ENTRY_LENGTH];
+      int offset = 0;
+      for (int i = 0; i < hashKeys.size(); i++) {
+        offset = Bytes.putBytes(manifest, offset, hashKeys.get(i), 0, HASH_LENGTH);
+        offset = Bytes.putInt(manifest, offset, lengths[i]);
+      }
+      return manifest;
+    }
+
+    public int getChunkCount() {
+      return manifest.length / ENTRY_LENGTH;
+    }
+
+    public byte[] getHashKey(final int chunk) {
+      byte[] hashKey = new byte[HASH_LENGTH];
+      System.arraycopy(manifest, chunk * ENTRY_LENGTH, hashKey, 0, HASH_LENGTH);
+      return hashKey;
+    }
+
+    public int getLength(final int chunk) {
+      return Bytes.toInt(manifest, chunk * ENTRY_LENGTH + HASH_LENGTH);
+    }
+
+    /**
+     * @return length of the whole document
+     */
+    public long getContentLength() {
+      long length = 0;
+      for (int i = 0; i < getChunkCount(); i++) {
+        length += getLength(i);
+      }
+      return length;
+    }
+}
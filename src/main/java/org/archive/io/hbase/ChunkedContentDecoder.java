@@ -0,0 +1,152 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Reads back content stored as chunks with
+ * {@link HBaseParameters#isChunkedContent()}: the content row holds a
+ * {@link ChunkManifest} and the stream fetches the chunk rows it lists,
+ * a batch at a time with one multi-get, as it is read.
+ */
+public class ChunkedContentDecoder implements ContentDecoder {
+
+    /** default number of chunks fetched per multi-get */
+    public static final int DEFAULT_BATCH_SIZE = 16;
+
+    private final int batchSize;
+
+    public ChunkedContentDecoder() {
+      this(DEFAULT_BATCH_SIZE);
+    }
+
+    public ChunkedContentDecoder(final int batchSize) {
+      this.batchSize = Math.max(1, batchSize);
+    }
+
+    @Override
+    public InputStream open(final HBaseReader reader, final byte[] hashKey,
+        final Result row) {
+      HBaseParameters parameters = reader.getParameters();
+      byte[] manifest = row.getValue(
+          Bytes.toBytes(parameters.getContentColumnFamily()),
+          Bytes.toBytes(parameters.getManifestColumnName()));
+      if (manifest == null || manifest.length == 0) {
+        return null;
+      }
+      return new ChunkStream(reader, hashKey, new ChunkManifest(manifest));
+    }
+
+    private class ChunkStream extends InputStream {
+      private final HBaseReader reader;
+      private final byte[] hashKey;
+      private final ChunkManifest manifest;
+      private final byte[] family;
+      private final byte[] qualifier;
+      private final List<byte[]> fetched = new ArrayList<byte[]>();
+      /** next chunk of the manifest to fetch */
+      private int nextChunk = 0;
+      private byte[] current = null;
+      private int position = 0;
+
+      ChunkStream(final HBaseReader reader, final byte[] hashKey,
+          final ChunkManifest manifest) {
+        this.reader = reader;
+        this.hashKey = hashKey;
+        this.manifest = manifest;
+        HBaseParameters parameters = reader.getParameters();
+        this.family = Bytes.toBytes(parameters.getContentColumnFamily());
+        this.qualifier = Bytes.toBytes(parameters.getContentColumnName());
+      }
+
+      /**
+       * @return false at the end of the content
+       */
+      private boolean advance() throws IOException {
+        while (current == null || position >= current.length) {
+          if (fetched.isEmpty()) {
+            if (nextChunk >= manifest.getChunkCount()) {
+              return false;
+            }
+            fetchBatch();
+          }
+          current = fetched.remove(0);
+          position = 0;
+        }
+        return true;
+      }
+
+      private void fetchBatch() throws IOException {
+        int end = Math.min(manifest.getChunkCount(), nextChunk + batchSize);
+        List<byte[]> keys = new ArrayList<byte[]>(end - nextChunk);
+        for (int i = nextChunk; i < end; i++) {
+          keys.add(manifest.getHashKey(i));
+        }
+        Result[] rows = reader.getContentRows(keys);
+        for (int i = 0; i < rows.length; i++) {
+          byte[] chunk = rows[i] == null ? null : rows[i].getValue(family, qualifier);
+          if (chunk == null || chunk.length != manifest.getLength(nextChunk + i)) {
+            throw new IOException("Missing chunk " + (nextChunk + i) + " "
+                + Bytes.toStringBinary(keys.get(i)) + " of "
+                + Bytes.toStringBinary(hashKey));
+          }
+          fetched.add(chunk);
+        }
+        nextChunk = end;
+      }
+
+      @Override
+      public int read() throws IOException {
+        if (!advance()) {
+          return -1;
+        }
+        return current[position++] & 0xff;
+      }
+
+      @Override
+      public int read(final byte[] b, final int off, final int len)
+          throws IOException {
+        if (len == 0) {
+          return 0;
+        }
+        if (!advance()) {
+          return -1;
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+      }
+
+      @Override
+      public void close() {
+        fetched.clear();
+        current = null;
+        nextChunk = manifest.getChunkCount();
+      }
+    }
+}
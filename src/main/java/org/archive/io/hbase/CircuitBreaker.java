@@ -0,0 +1,133 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A circuit breaker for the calls to one table.
+ *
+ * After a number of consecutive failed or slow calls the breaker opens and
+ * callers are expected to take their fallback path at once instead of
+ * waiting on the table. Once the open time has passed a single trial call is
+ * let through; if it succeeds the breaker closes again, else it reopens.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOG = Logger.getLogger(CircuitBreaker.class.getName());
+
+    public enum State {
+      CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final long slowCallNanos;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private long tripCount = 0;
+    private long rejectedCount = 0;
+
+    /**
+     * @param name what the breaker protects, for logging
+     * @param failureThreshold consecutive failures that open the breaker
+     * @param openMs how long the breaker stays open before a trial call
+     * @param slowCallMs calls slower than this count as failures
+     */
+    public CircuitBreaker(final String name, final int failureThreshold,
+        final long openMs, final long slowCallMs) {
+      this.name = name;
+      this.failureThreshold = Math.max(1, failureThreshold);
+      this.openNanos = openMs * 1000L * 1000L;
+      this.slowCallNanos = slowCallMs * 1000L * 1000L;
+    }
+
+    /**
+     * @return true if the call may go ahead, false if the caller should
+     *         fall back right away
+     */
+    public synchronized boolean allowRequest() {
+      switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (System.nanoTime() - openedAt >= openNanos) {
+          state = State.HALF_OPEN;
+          return true;
+        }
+        rejectedCount++;
+        return false;
+      default:
+        // a trial call is already in flight
+        rejectedCount++;
+        return false;
+      }
+    }
+
+    /**
+     * Report the outcome of a call let through by {@link #allowRequest()}.
+     */
+    public synchronized void record(final long latencyNanos,
+        final boolean success) {
+      if (success && latencyNanos <= slowCallNanos) {
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+          LOG.info("Circuit breaker for " + name + " closed");
+          state = State.CLOSED;
+        }
+        return;
+      }
+      consecutiveFailures++;
+      if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+        if (state != State.OPEN) {
+          LOG.warn("Circuit breaker for " + name + " opened after "
+              + consecutiveFailures + " failed or slow calls");
+          tripCount++;
+        }
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+      }
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public synchronized State getState() {
+      return state;
+    }
+
+    /**
+     * @return number of times the breaker opened
+     */
+    public synchronized long getTripCount() {
+      return tripCount;
+    }
+
+    /**
+     * @return number of calls turned away while open
+     */
+    public synchronized long getRejectedCount() {
+      return rejectedCount;
+    }
+}
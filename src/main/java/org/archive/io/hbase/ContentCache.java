@@ -0,0 +1,94 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * An LRU cache of content hash to content, bounded by the total bytes of
+ * content held. Content larger than maxEntryBytes is never cached, so one
+ * big document can't flush out the working set. It may be shared by
+ * readers on different threads.
+ */
+public class ContentCache {
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, byte[]> entries =
+        new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    public ContentCache(final long maxBytes, final long maxEntryBytes) {
+      this.maxBytes = maxBytes;
+      this.maxEntryBytes = Math.min(maxBytes, maxEntryBytes);
+    }
+
+    public synchronized byte[] get(final byte[] hashKey) {
+      byte[] content = entries.get(Bytes.toStringBinary(hashKey));
+      if (content == null) {
+        missCount++;
+      } else {
+        hitCount++;
+      }
+      return content;
+    }
+
+    public synchronized void put(final byte[] hashKey, final byte[] content) {
+      if (content == null || content.length > maxEntryBytes) {
+        return;
+      }
+      byte[] previous = entries.put(Bytes.toStringBinary(hashKey), content);
+      if (previous != null) {
+        bytes -= previous.length;
+      }
+      bytes += content.length;
+      Iterator<Map.Entry<String, byte[]>> eldest = entries.entrySet().iterator();
+      while (bytes > maxBytes && eldest.hasNext()) {
+        bytes -= eldest.next().getValue().length;
+        eldest.remove();
+      }
+    }
+
+    public synchronized int size() {
+      return entries.size();
+    }
+
+    public synchronized long getBytes() {
+      return bytes;
+    }
+
+    public long getMaxBytes() {
+      return maxBytes;
+    }
+
+    public synchronized long getHitCount() {
+      return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+      return missCount;
+    }
+}
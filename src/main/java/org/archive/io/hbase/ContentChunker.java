@@ -0,0 +1,100 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import java.util.Random;
+
+/**
+ * Splits content into content defined chunks with a gear rolling hash.
+ *
+ * The hash is shifted left and added the gear value of each byte, so its
+ * top bits depend on the last 64 bytes only. A chunk ends where those top
+ * bits are all zero, which happens every averageSize bytes on average,
+ * and the same bytes give the same boundaries wherever they appear. An edit
+ * therefore only changes the chunks around it; the rest of the document
+ * splits as before and its chunks dedup. Chunks are at least minSize bytes,
+ * except the last, and at most maxSize bytes.
+ *
+ * The gear table is generated from a fixed seed: changing it would change
+ * every boundary and defeat dedup against content already stored.
+ */
+public class ContentChunker {
+
+    private static final long[] GEAR = new long[256];
+    static {
+      Random random = new Random(0x4842617365435243L);
+      for (int i = 0; i < GEAR.length; i++) {
+        GEAR[i] = random.nextLong();
+      }
+    }
+
+    private final int minSize;
+    private final int maxSize;
+    private final long mask;
+
+    public ContentChunker(final int minSize, final int averageSize,
+        final int maxSize) {
+      this.minSize = Math.max(1, minSize);
+      this.maxSize = Math.max(this.minSize, maxSize);
+      // averageSize past the minimum, rounded to a power of two
+      int bits = 64 - Long.numberOfLeadingZeros(
+          Math.max(1, averageSize - this.minSize) - 1);
+      this.mask = bits == 0 ? 0 : -1L << (64 - bits);
+    }
+
+    public ContentChunker(final HBaseParameters parameters) {
+      this(parameters.getChunkMinSize(), parameters.getChunkAverageSize(),
+          parameters.getChunkMaxSize());
+    }
+
+    /**
+     * @return the end offsets of the chunks, the last one being the length
+     *         of the content
+     */
+    public int[] chunk(final byte[] content) {
+      int[] ends = new int[Math.max(1, content.length / minSize + 1)];
+      int count = 0;
+      int start = 0;
+      while (start < content.length) {
+        int end = nextBoundary(content, start);
+        ends[count++] = end;
+        start = end;
+      }
+      int[] result = new int[count];
+      System.arraycopy(ends, 0, result, 0, count);
+      return result;
+    }
+
+    private int nextBoundary(final byte[] content, final int start) {
+      int remaining = content.length - start;
+      if (remaining <= minSize) {
+        return content.length;
+      }
+      int limit = start + Math.min(remaining, maxSize);
+      long hash = 0;
+      for (int i = start + minSize; i < limit; i++) {
+        hash = (hash << 1) + GEAR[content[i] & 0xff];
+        if ((hash & mask) == 0) {
+          return i + 1;
+        }
+      }
+      return limit;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ * Turns a content table row into the stream of the document it stores.
+ *
+ * {@link HBaseReader} asks its decoders in turn; the first one that
+ * accepts a row opens it. This is where layouts other than a single
+ * content cell, e.g. chunked or compressed content, are read back.
+ */
+public interface ContentDecoder {
+
+    /**
+     * Open the content stored in a row of the content table.
+     *
+     * @param reader the reader, to fetch further rows the content refers to
+     * @param hashKey the content hash the row is keyed by
+     * @param row the row, with the content column family
+     * @return the content, or null if this decoder doesn't handle the row
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    InputStream open(HBaseReader reader, byte[] hashKey, Result row)
+        throws IOException;
+}
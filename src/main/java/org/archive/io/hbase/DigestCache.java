@@ -0,0 +1,139 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A bounded LRU cache of url row key to the content hash last written for
+ * it. Shared by all writers of a pool so a recrawl can tell unchanged
+ * documents apart without a round trip to the url table.
+ */
+public class DigestCache {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, byte[]> entries;
+
+    public DigestCache(final int maxEntries) {
+      this.maxEntries = maxEntries;
+      this.entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+          return size() > DigestCache.this.maxEntries;
+        }
+      };
+    }
+
+    public synchronized byte[] get(final String rowKey) {
+      return entries.get(rowKey);
+    }
+
+    public synchronized void put(final String rowKey, final byte[] hashKey) {
+      if (maxEntries <= 0 || hashKey == null) {
+        return;
+      }
+      entries.put(rowKey, hashKey);
+    }
+
+    public synchronized void clear() {
+      entries.clear();
+    }
+
+    /**
+     * Write the entries out, least recently used first, one per line as the
+     * hex encoded key and hash separated by a tab.
+     *
+     * @return number of entries written
+     * @see #load(BufferedReader)
+     */
+    public synchronized int save(final Writer out) throws IOException {
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        out.write(toHex(Bytes.toBytes(entry.getKey())));
+        out.write('\t');
+        out.write(toHex(entry.getValue()));
+        out.write('\n');
+      }
+      return entries.size();
+    }
+
+    /**
+     * Add the entries written by {@link #save(Writer)}. Loading them in the
+     * order they were saved keeps their recency order.
+     *
+     * @return number of entries read
+     * @throws IOException if a line isn't an entry
+     */
+    public int load(final BufferedReader in) throws IOException {
+      int count = 0;
+      for (String line = in.readLine(); line != null; line = in.readLine()) {
+        int tab = line.indexOf('\t');
+        if (tab < 0) {
+          throw new IOException("Bad digest cache entry: " + line);
+        }
+        put(Bytes.toString(fromHex(line.substring(0, tab))),
+            fromHex(line.substring(tab + 1)));
+        count++;
+      }
+      return count;
+    }
+
+    private static String toHex(final byte[] bytes) {
+      char[] hex = new char[2 * bytes.length];
+      for (int i = 0; i < bytes.length; i++) {
+        hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+        hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+      }
+      return new String(hex);
+    }
+
+    private static byte[] fromHex(final String hex) throws IOException {
+      if (hex.length() % 2 != 0) {
+        throw new IOException("Odd length hex string: " + hex);
+      }
+      byte[] bytes = new byte[hex.length() / 2];
+      for (int i = 0; i < bytes.length; i++) {
+        int high = Character.digit(hex.charAt(2 * i), 16);
+        int low = Character.digit(hex.charAt(2 * i + 1), 16);
+        if (high < 0 || low < 0) {
+          throw new IOException("Bad hex string: " + hex);
+        }
+        bytes[i] = (byte) ((high << 4) | low);
+      }
+      return bytes;
+    }
+
+    public synchronized int size() {
+      return entries.size();
+    }
+
+    public int getMaxEntries() {
+      return maxEntries;
+    }
+}
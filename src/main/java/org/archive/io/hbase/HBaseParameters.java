@@ -19,6 +19,7 @@
 
 package org.archive.io.hbase;
 
+import org.apache.hadoop.hbase.HConstants;
 import org.archive.io.ArchiveFileConstants;
 
 /**
@@ -51,6 +52,7 @@ public class HBaseParameters implements ArchiveFileConstants {
     // "content" column family and qualifiers
     public static final String CONTENT_COLUMN_FAMILY = "c";
     public static final String CONTENT_COLUMN_NAME = "r";
+    public static final String MANIFEST_COLUMN_NAME = "m";
 
     // "curi" column family and qualifiers
     public static final String CURI_COLUMN_FAMILY = "u";
@@ -64,6 +66,25 @@ public class HBaseParameters implements ArchiveFileConstants {
     public static final String HASH_COLUMN_NAME = "h";
     public static final String STATUS_COLUMN_NAME = "s";
     public static final String SOURCE_TAG_COLUMN_NAME = "st";
+    public static final String FETCH_TIME_COLUMN_NAME = "ft";
+    public static final String REVISIT_COLUMN_NAME = "rv";
+
+    // default content defined chunk sizes
+    public static final int CHUNK_MIN_SIZE = 2 * 1024;
+    public static final int CHUNK_AVERAGE_SIZE = 8 * 1024;
+    public static final int CHUNK_MAX_SIZE = 64 * 1024;
+
+    // index tables column family; index rows hold a single cell in it
+    public static final String INDEX_COLUMN_FAMILY = "x";
+
+    // default number of url row key to content hash entries remembered in revisit mode
+    public static final int REVISIT_CACHE_SIZE = 100000;
+
+    // default client write buffer size, same as hbase.client.write.buffer
+    public static final long WRITE_BUFFER_SIZE = 2 * 1024 * 1024;
+
+    // default number of cell versions kept by tables created by the writer
+    public static final int MAX_VERSIONS = 3;
 
     // the zk client port name, this has to match what is in hbase-site.xml for the clientPort config attribute.
     public static String ZOOKEEPER_CLIENT_PORT = "hbase.zookeeper.property.clientPort";
@@ -73,6 +94,7 @@ public class HBaseParameters implements ArchiveFileConstants {
 
     private String contentColumnFamily = CONTENT_COLUMN_FAMILY;
     private String contentColumnName = CONTENT_COLUMN_NAME;
+    private String manifestColumnName = MANIFEST_COLUMN_NAME;
 
     private String curiColumnFamily = CURI_COLUMN_FAMILY;
     private String ipColumnName = IP_COLUMN_NAME;
@@ -85,6 +107,98 @@ public class HBaseParameters implements ArchiveFileConstants {
     private String hashColumnName = HASH_COLUMN_NAME;
     private String statusColumnName = STATUS_COLUMN_NAME;
     private String sourceTagColumnName = SOURCE_TAG_COLUMN_NAME;
+    private String fetchTimeColumnName = FETCH_TIME_COLUMN_NAME;
+    private String revisitColumnName = REVISIT_COLUMN_NAME;
+
+    /**
+     * If set to true, a record whose content hash matches the one already
+     * stored in its url row is written as a compact revisit marker (status,
+     * fetch time) instead of rewriting headers and content.
+     */
+    private boolean revisitMode = false;
+    private int revisitCacheSize = REVISIT_CACHE_SIZE;
+
+    /**
+     * If set to true, every cell is stamped with the fetch begin time of its
+     * CrawlURI instead of the server assigned time, so downstream jobs can
+     * select a crawl with a time range scan.
+     */
+    private boolean useFetchTimestamp = false;
+
+    /**
+     * If set to true, missing url and content tables are created when the
+     * writer pool is set up, using the version and TTL policy below.
+     */
+    private boolean createTables = false;
+    private int maxVersions = MAX_VERSIONS;
+    private int timeToLive = HConstants.FOREVER;
+
+    /**
+     * Bytes of records a writer buffers before flushing both tables.
+     */
+    private long writeBufferSize = WRITE_BUFFER_SIZE;
+
+    /**
+     * Maximum number of region servers a flush sends to in parallel, 0 for
+     * the client default of one thread per region server.
+     */
+    private int flushConcurrency = 0;
+
+    /**
+     * Consecutive failed or slow calls after which lookups against a table
+     * stop for breakerOpenMs and take their fallback path. 0 disables the
+     * circuit breakers.
+     */
+    private int breakerFailureThreshold = 0;
+    private long breakerOpenMs = 30 * 1000;
+    private long breakerSlowCallMs = 5 * 1000;
+
+    /**
+     * If set to true, url existence lookups still unanswered after the
+     * observed 99th percentile latency (but at least hedgeMinDelayMs) are
+     * sent a second time and the first answer wins.
+     */
+    private boolean hedgeLookups = false;
+    private long hedgeMinDelayMs = 50;
+
+    /**
+     * Secondary index tables, null to not write that index. Index rows are
+     * keyed by the indexed value, a 0 byte and the url row key, and written
+     * in the same batch as the url row. Rows of a url's previous values are
+     * kept; see {@link SecondaryIndex}.
+     */
+    private String hostIndexTableName = null;
+    private String mimeTypeIndexTableName = null;
+    private String statusIndexTableName = null;
+    private String indexColumnFamily = INDEX_COLUMN_FAMILY;
+
+    /**
+     * If set to true, content is split into content defined chunks stored
+     * under their own hashes, and the content row keeps the list of chunks
+     * in the manifest column. Documents that differ in a few places then
+     * share most of their chunks. Content that makes a single chunk is
+     * stored whole as before.
+     */
+    private boolean chunkedContent = false;
+    private int chunkMinSize = CHUNK_MIN_SIZE;
+    private int chunkAverageSize = CHUNK_AVERAGE_SIZE;
+    private int chunkMaxSize = CHUNK_MAX_SIZE;
+    private int chunkCacheSize = REVISIT_CACHE_SIZE;
+
+    /**
+     * If set to true, dns: and whois: records are written as a single row
+     * with their status, fetch time, url, ip and whole payload in the
+     * response column, without touching the content table or the indexes.
+     * They make up a large share of the records of a crawl, and their
+     * payloads are too small to be worth deduplicating.
+     */
+    private boolean compactNonHttpRecords = false;
+
+    /**
+     * Table the compact dns: and whois: rows go to, null to write them to
+     * the url table.
+     */
+    private String nonHttpTableName = null;
 
     public String getContentTableName() {
       return contentTableName;
@@ -118,6 +232,14 @@ public class HBaseParameters implements ArchiveFileConstants {
         this.contentColumnName = contentColumnName;
     }
 
+    public String getManifestColumnName() {
+      return manifestColumnName;
+    }
+
+    public void setManifestColumnName(String manifestColumnName) {
+      this.manifestColumnName = manifestColumnName;
+    }
+
     public String getCuriColumnFamily() {
         return curiColumnFamily;
     }
@@ -206,6 +328,221 @@ public class HBaseParameters implements ArchiveFileConstants {
       this.sourceTagColumnName = sourceTagColumnName;
     }
 
+    public String getFetchTimeColumnName() {
+      return fetchTimeColumnName;
+    }
+
+    public void setFetchTimeColumnName(String fetchTimeColumnName) {
+      this.fetchTimeColumnName = fetchTimeColumnName;
+    }
+
+    public String getRevisitColumnName() {
+      return revisitColumnName;
+    }
+
+    public void setRevisitColumnName(String revisitColumnName) {
+      this.revisitColumnName = revisitColumnName;
+    }
+
+    public boolean isRevisitMode() {
+      return revisitMode;
+    }
+
+    public void setRevisitMode(boolean revisitMode) {
+      this.revisitMode = revisitMode;
+    }
+
+    public int getRevisitCacheSize() {
+      return revisitCacheSize;
+    }
+
+    public void setRevisitCacheSize(int revisitCacheSize) {
+      this.revisitCacheSize = revisitCacheSize;
+    }
+
+    public boolean isUseFetchTimestamp() {
+      return useFetchTimestamp;
+    }
+
+    public void setUseFetchTimestamp(boolean useFetchTimestamp) {
+      this.useFetchTimestamp = useFetchTimestamp;
+    }
+
+    public boolean isCreateTables() {
+      return createTables;
+    }
+
+    public void setCreateTables(boolean createTables) {
+      this.createTables = createTables;
+    }
+
+    public int getMaxVersions() {
+      return maxVersions;
+    }
+
+    public void setMaxVersions(int maxVersions) {
+      this.maxVersions = maxVersions;
+    }
+
+    /**
+     * @return time to live of created column families in seconds
+     */
+    public int getTimeToLive() {
+      return timeToLive;
+    }
+
+    public void setTimeToLive(int timeToLive) {
+      this.timeToLive = timeToLive;
+    }
+
+    public long getWriteBufferSize() {
+      return writeBufferSize;
+    }
+
+    public void setWriteBufferSize(long writeBufferSize) {
+      this.writeBufferSize = writeBufferSize;
+    }
+
+    public int getFlushConcurrency() {
+      return flushConcurrency;
+    }
+
+    public void setFlushConcurrency(int flushConcurrency) {
+      this.flushConcurrency = flushConcurrency;
+    }
+
+    public int getBreakerFailureThreshold() {
+      return breakerFailureThreshold;
+    }
+
+    public void setBreakerFailureThreshold(int breakerFailureThreshold) {
+      this.breakerFailureThreshold = breakerFailureThreshold;
+    }
+
+    public long getBreakerOpenMs() {
+      return breakerOpenMs;
+    }
+
+    public void setBreakerOpenMs(long breakerOpenMs) {
+      this.breakerOpenMs = breakerOpenMs;
+    }
+
+    public long getBreakerSlowCallMs() {
+      return breakerSlowCallMs;
+    }
+
+    public void setBreakerSlowCallMs(long breakerSlowCallMs) {
+      this.breakerSlowCallMs = breakerSlowCallMs;
+    }
+
+    public boolean isHedgeLookups() {
+      return hedgeLookups;
+    }
+
+    public void setHedgeLookups(boolean hedgeLookups) {
+      this.hedgeLookups = hedgeLookups;
+    }
+
+    public long getHedgeMinDelayMs() {
+      return hedgeMinDelayMs;
+    }
+
+    public void setHedgeMinDelayMs(long hedgeMinDelayMs) {
+      this.hedgeMinDelayMs = hedgeMinDelayMs;
+    }
+
+    public String getHostIndexTableName() {
+      return hostIndexTableName;
+    }
+
+    public void setHostIndexTableName(String hostIndexTableName) {
+      this.hostIndexTableName = hostIndexTableName;
+    }
+
+    public String getMimeTypeIndexTableName() {
+      return mimeTypeIndexTableName;
+    }
+
+    public void setMimeTypeIndexTableName(String mimeTypeIndexTableName) {
+      this.mimeTypeIndexTableName = mimeTypeIndexTableName;
+    }
+
+    public String getStatusIndexTableName() {
+      return statusIndexTableName;
+    }
+
+    public void setStatusIndexTableName(String statusIndexTableName) {
+      this.statusIndexTableName = statusIndexTableName;
+    }
+
+    public String getIndexColumnFamily() {
+      return indexColumnFamily;
+    }
+
+    public void setIndexColumnFamily(String indexColumnFamily) {
+      this.indexColumnFamily = indexColumnFamily;
+    }
+
+    public boolean isChunkedContent() {
+      return chunkedContent;
+    }
+
+    public void setChunkedContent(boolean chunkedContent) {
+      this.chunkedContent = chunkedContent;
+    }
+
+    public int getChunkMinSize() {
+      return chunkMinSize;
+    }
+
+    public void setChunkMinSize(int chunkMinSize) {
+      this.chunkMinSize = chunkMinSize;
+    }
+
+    public int getChunkAverageSize() {
+      return chunkAverageSize;
+    }
+
+    public void setChunkAverageSize(int chunkAverageSize) {
+      this.chunkAverageSize = chunkAverageSize;
+    }
+
+    public int getChunkMaxSize() {
+      return chunkMaxSize;
+    }
+
+    public void setChunkMaxSize(int chunkMaxSize) {
+      this.chunkMaxSize = chunkMaxSize;
+    }
+
+    /**
+     * @return number of recently written chunk hashes remembered, so their
+     *         chunks aren't looked up or written again
+     */
+    public int getChunkCacheSize() {
+      return chunkCacheSize;
+    }
+
+    public void setChunkCacheSize(int chunkCacheSize) {
+      this.chunkCacheSize = chunkCacheSize;
+    }
+
+    public boolean isCompactNonHttpRecords() {
+      return compactNonHttpRecords;
+    }
+
+    public void setCompactNonHttpRecords(boolean compactNonHttpRecords) {
+      this.compactNonHttpRecords = compactNonHttpRecords;
+    }
+
+    public String getNonHttpTableName() {
+      return nonHttpTableName;
+    }
+
+    public void setNonHttpTableName(String nonHttpTableName) {
+      this.nonHttpTableName = nonHttpTableName;
+    }
+
     public String getZookeeperClientPort() {
       return ZOOKEEPER_CLIENT_PORT;
     }
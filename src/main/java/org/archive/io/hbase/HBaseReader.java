@@ -0,0 +1,342 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Reads back what {@link HBaseWriter} writes: url rows decoded into
+ * {@link HBaseRecord}s and the content they refer to by hash, with the
+ * layout taken from the same {@link HBaseParameters}.
+ *
+ * Lookups of many urls or hashes are sent as one multi-get, which the client
+ * splits by region server. Content can be cached in a {@link ContentCache},
+ * which may be shared by readers; content rows are turned into streams by
+ * {@link ContentDecoder}s, so layouts other than a single content cell can
+ * be read without reading the whole document into memory.
+ *
+ * A reader holds its own table clients and isn't safe for use by several
+ * threads at once.
+ */
+public class HBaseReader implements Closeable {
+
+    /**
+     * Decodes the layout the writer has always used: one content cell. An
+     * empty cell is the placeholder a writer stores before flushing the
+     * content, which is never empty, so it reads as no content.
+     */
+    private static class CellDecoder implements ContentDecoder {
+      @Override
+      public InputStream open(HBaseReader reader, byte[] hashKey, Result row) {
+        byte[] content = row.getValue(reader.contentFamily,
+            reader.contentQualifier);
+        return content == null || content.length == 0 ? null
+            : new ByteArrayInputStream(content);
+      }
+    }
+
+    private final HBaseParameters parameters;
+    private final HTableInterface urlTable;
+    private final HTableInterface contentTable;
+    private final byte[] curiFamily;
+    private final byte[] contentFamily;
+    private final byte[] contentQualifier;
+    private final List<ContentDecoder> decoders = new ArrayList<ContentDecoder>();
+    private ContentCache contentCache;
+
+    public HBaseReader(final Configuration conf,
+        final HBaseParameters parameters) throws IOException {
+      this(conf, parameters, new DefaultTableFactory());
+    }
+
+    public HBaseReader(final Configuration conf,
+        final HBaseParameters parameters, final HBaseTableFactory tableFactory)
+        throws IOException {
+      this.parameters = parameters;
+      this.urlTable = tableFactory.createTable(conf,
+          parameters.getUrlTableName(), parameters);
+      this.contentTable = tableFactory.createTable(conf,
+          parameters.getContentTableName(), parameters);
+      this.curiFamily = Bytes.toBytes(parameters.getCuriColumnFamily());
+      this.contentFamily = Bytes.toBytes(parameters.getContentColumnFamily());
+      this.contentQualifier = Bytes.toBytes(parameters.getContentColumnName());
+      this.decoders.add(new ChunkedContentDecoder());
+      this.decoders.add(new CellDecoder());
+    }
+
+    public HBaseParameters getParameters() {
+      return parameters;
+    }
+
+    public ContentCache getContentCache() {
+      return contentCache;
+    }
+
+    public void setContentCache(ContentCache contentCache) {
+      this.contentCache = contentCache;
+    }
+
+    /**
+     * Add a decoder for another content layout. It is asked before the ones
+     * added earlier.
+     */
+    public void addContentDecoder(ContentDecoder decoder) {
+      decoders.add(0, decoder);
+    }
+
+    /**
+     * @return the record of a url, or null if it wasn't written
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public HBaseRecord get(final String url) throws IOException {
+      return getByRowKey(HBaseWriter.createURLKey(url));
+    }
+
+    /**
+     * @return the record of a url row key, or null if it wasn't written
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public HBaseRecord getByRowKey(final byte[] rowKey) throws IOException {
+      return HBaseRecord.fromResult(urlTable.get(createUrlGet(rowKey)),
+          parameters);
+    }
+
+    /**
+     * Look up many urls in one multi-get.
+     *
+     * @return the records in the order of the urls, null for urls that
+     *         weren't written
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public List<HBaseRecord> get(final List<String> urls) throws IOException {
+      List<Get> gets = new ArrayList<Get>(urls.size());
+      for (String url : urls) {
+        gets.add(createUrlGet(HBaseWriter.createURLKey(url)));
+      }
+      Result[] results = urlTable.get(gets);
+      List<HBaseRecord> records = new ArrayList<HBaseRecord>(results.length);
+      for (Result result : results) {
+        records.add(HBaseRecord.fromResult(result, parameters));
+      }
+      return records;
+    }
+
+    /**
+     * Look up the records index rows point to in one multi-get, keeping
+     * only those that still have the indexed value; the index keeps the
+     * rows of values a url had before it was fetched again.
+     *
+     * @param kind the index the rows were scanned from
+     * @param indexKeys the index row keys
+     * @return the current records, in the order of the index rows
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public List<HBaseRecord> getCurrent(final SecondaryIndex.Kind kind,
+        final List<byte[]> indexKeys) throws IOException {
+      List<Get> gets = new ArrayList<Get>(indexKeys.size());
+      for (byte[] indexKey : indexKeys) {
+        gets.add(createUrlGet(SecondaryIndex.getUrlRowKey(indexKey)));
+      }
+      Result[] results = urlTable.get(gets);
+      List<HBaseRecord> records = new ArrayList<HBaseRecord>(results.length);
+      for (int i = 0; i < results.length; i++) {
+        HBaseRecord record = HBaseRecord.fromResult(results[i], parameters);
+        if (SecondaryIndex.isCurrent(kind, indexKeys.get(i), record)) {
+          records.add(record);
+        }
+      }
+      return records;
+    }
+
+    /**
+     * Scan the url table, e.g. with a scan from {@link HBaseScans}; rows
+     * decode with {@link HBaseRecord#fromResult(Result, HBaseParameters)}.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public ResultScanner getUrlScanner(final Scan scan) throws IOException {
+      return urlTable.getScanner(scan);
+    }
+
+    private Get createUrlGet(final byte[] rowKey) {
+      return new Get(rowKey).addFamily(curiFamily);
+    }
+
+    /**
+     * @return the content of a record, or null if it has none or it wasn't
+     *         stored
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public byte[] getContent(final HBaseRecord record) throws IOException {
+      if (record == null || record.getHashKey() == null) {
+        return null;
+      }
+      return getContent(record.getHashKey());
+    }
+
+    /**
+     * @return the content stored under a hash, or null if there is none
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public byte[] getContent(final byte[] hashKey) throws IOException {
+      if (contentCache != null) {
+        byte[] content = contentCache.get(hashKey);
+        if (content != null) {
+          return content;
+        }
+      }
+      return decode(hashKey, getContentRow(hashKey));
+    }
+
+    /**
+     * Fetch the content of many hashes, from the cache where possible and
+     * the rest in one multi-get.
+     *
+     * @return the contents in the order of the hashes, null where there is
+     *         none
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public List<byte[]> getContents(final List<byte[]> hashKeys)
+        throws IOException {
+      List<byte[]> contents = new ArrayList<byte[]>(hashKeys.size());
+      List<Integer> missing = new ArrayList<Integer>();
+      List<byte[]> missingKeys = new ArrayList<byte[]>();
+      for (byte[] hashKey : hashKeys) {
+        byte[] content = contentCache == null ? null : contentCache.get(hashKey);
+        if (content == null) {
+          missing.add(Integer.valueOf(contents.size()));
+          missingKeys.add(hashKey);
+        }
+        contents.add(content);
+      }
+      if (!missingKeys.isEmpty()) {
+        Result[] rows = getContentRows(missingKeys);
+        for (int i = 0; i < rows.length; i++) {
+          contents.set(missing.get(i).intValue(),
+              decode(missingKeys.get(i), rows[i]));
+        }
+      }
+      return contents;
+    }
+
+    private byte[] decode(final byte[] hashKey, final Result row)
+        throws IOException {
+      InputStream in = open(hashKey, row);
+      if (in == null) {
+        return null;
+      }
+      ByteArrayOutputStream os = new ByteArrayOutputStream();
+      try {
+        IOUtils.copyBytes(in, os, 64 * 1024, false);
+      } finally {
+        IOUtils.closeStream(in);
+      }
+      byte[] content = os.toByteArray();
+      if (content.length == 0) {
+        // not stored yet, don't remember it as empty
+        return null;
+      }
+      if (contentCache != null) {
+        contentCache.put(hashKey, content);
+      }
+      return content;
+    }
+
+    /**
+     * Open the content stored under a hash as a stream, without first
+     * reading all of it where the layout allows. Cached content is served
+     * from the cache; streamed content isn't added to it.
+     *
+     * @return the content, or null if there is none
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public InputStream openContent(final byte[] hashKey) throws IOException {
+      if (contentCache != null) {
+        byte[] content = contentCache.get(hashKey);
+        if (content != null) {
+          return new ByteArrayInputStream(content);
+        }
+      }
+      return open(hashKey, getContentRow(hashKey));
+    }
+
+    private InputStream open(final byte[] hashKey, final Result row)
+        throws IOException {
+      if (row == null || row.isEmpty()) {
+        return null;
+      }
+      for (ContentDecoder decoder : decoders) {
+        InputStream in = decoder.open(this, hashKey, row);
+        if (in != null) {
+          return in;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return the content column family of a content table row, for
+     *         decoders to follow
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public Result getContentRow(final byte[] rowKey) throws IOException {
+      return contentTable.get(createContentGet(rowKey));
+    }
+
+    /**
+     * @return the content column family of many content table rows, in one
+     *         multi-get
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public Result[] getContentRows(final List<byte[]> rowKeys)
+        throws IOException {
+      List<Get> gets = new ArrayList<Get>(rowKeys.size());
+      for (byte[] rowKey : rowKeys) {
+        gets.add(createContentGet(rowKey));
+      }
+      return contentTable.get(gets);
+    }
+
+    private Get createContentGet(final byte[] rowKey) {
+      // the curi family only holds back references, which may be many
+      return new Get(rowKey).addFamily(contentFamily);
+    }
+
+    @Override
+    public void close() throws IOException {
+      urlTable.close();
+      contentTable.close();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * The metadata of a url row as written by {@link HBaseWriter}, decoded
+ * according to {@link HBaseParameters}. Fields the row doesn't have are
+ * null, or -1 for the status and times.
+ */
+public class HBaseRecord {
+
+    private final byte[] rowKey;
+    private String url;
+    private int status = -1;
+    private long fetchTime = -1;
+    private long revisitTime = -1;
+    private long timestamp = -1;
+    private String ip;
+    private String mimeType;
+    private String pathFromSeed;
+    private byte[] via;
+    private String sourceTag;
+    private byte[] request;
+    private byte[] responseHeaders;
+    private byte[] hashKey;
+
+    public HBaseRecord(final byte[] rowKey) {
+      this.rowKey = rowKey;
+    }
+
+    /**
+     * Decode a url table row.
+     *
+     * @return the record, or null if the row is empty
+     */
+    public static HBaseRecord fromResult(final Result result,
+        final HBaseParameters parameters) {
+      if (result == null || result.isEmpty()) {
+        return null;
+      }
+      byte[] family = Bytes.toBytes(parameters.getCuriColumnFamily());
+      HBaseRecord record = new HBaseRecord(result.getRow());
+      record.url = toString(result.getValue(family,
+          Bytes.toBytes(parameters.getUrlColumnName())));
+      KeyValue status = result.getColumnLatest(family,
+          Bytes.toBytes(parameters.getStatusColumnName()));
+      if (status != null) {
+        record.timestamp = status.getTimestamp();
+        if (status.getValueLength() == Bytes.SIZEOF_INT) {
+          record.status = Bytes.toInt(status.getValue());
+        }
+      }
+      record.fetchTime = toLong(result.getValue(family,
+          Bytes.toBytes(parameters.getFetchTimeColumnName())));
+      record.revisitTime = toLong(result.getValue(family,
+          Bytes.toBytes(parameters.getRevisitColumnName())));
+      record.ip = toString(result.getValue(family,
+          Bytes.toBytes(parameters.getIpColumnName())));
+      record.mimeType = toString(result.getValue(family,
+          Bytes.toBytes(parameters.getMimeTypeColumnName())));
+      record.pathFromSeed = toString(result.getValue(family,
+          Bytes.toBytes(parameters.getPathFromSeedColumnName())));
+      record.via = result.getValue(family,
+          Bytes.toBytes(parameters.getViaColumnName()));
+      record.sourceTag = toString(result.getValue(family,
+          Bytes.toBytes(parameters.getSourceTagColumnName())));
+      record.request = result.getValue(family,
+          Bytes.toBytes(parameters.getRequestColumnName()));
+      record.responseHeaders = result.getValue(family,
+          Bytes.toBytes(parameters.getResponseColumnName()));
+      record.hashKey = result.getValue(family,
+          Bytes.toBytes(parameters.getHashColumnName()));
+      return record;
+    }
+
+    private static String toString(final byte[] value) {
+      return value == null ? null : Bytes.toString(value);
+    }
+
+    private static long toLong(final byte[] value) {
+      return value == null || value.length != Bytes.SIZEOF_LONG ? -1
+          : Bytes.toLong(value);
+    }
+
+    public byte[] getRowKey() {
+      return rowKey;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    public long getFetchTime() {
+      return fetchTime;
+    }
+
+    /**
+     * The revisit cell outlives a later full record, so it only counts when
+     * it is the fetch time of the latest fetch.
+     *
+     * @return fetch time of the latest fetch if it was an unchanged revisit,
+     *         -1 if it wrote a full record
+     */
+    public long getRevisitTime() {
+      return isRevisit() ? revisitTime : -1;
+    }
+
+    /**
+     * @return timestamp of the latest status cell
+     */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    public boolean isRevisit() {
+      return revisitTime != -1 && revisitTime == fetchTime;
+    }
+
+    public String getIp() {
+      return ip;
+    }
+
+    public String getMimeType() {
+      return mimeType;
+    }
+
+    public String getPathFromSeed() {
+      return pathFromSeed;
+    }
+
+    /**
+     * @return the url row key of the via, as the writer stores it
+     */
+    public byte[] getVia() {
+      return via;
+    }
+
+    public String getSourceTag() {
+      return sourceTag;
+    }
+
+    public byte[] getRequest() {
+      return request;
+    }
+
+    public byte[] getResponseHeaders() {
+      return responseHeaders;
+    }
+
+    /**
+     * @return the content hash keying the content row, null if the record
+     *         has no content
+     */
+    public byte[] getHashKey() {
+      return hashKey;
+    }
+
+    @Override
+    public String toString() {
+      return "HBaseRecord(" + Bytes.toStringBinary(rowKey) + ", " + status
+          + ", " + fetchTime + ")";
+    }
+}
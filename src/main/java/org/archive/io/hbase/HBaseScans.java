@@ -0,0 +1,72 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Scan helpers for downstream readers of the url table.
+ *
+ * With {@link HBaseParameters#isUseFetchTimestamp()} enabled every cell
+ * carries the fetch time of its record, so a time range scan only returns
+ * what was crawled within the range and the region servers can skip store
+ * files whose timestamps fall entirely outside of it.
+ */
+public class HBaseScans {
+
+    /** default rows fetched per scanner round trip */
+    public static final int DEFAULT_CACHING = 500;
+
+    private HBaseScans() {
+    }
+
+    /**
+     * Create a scan of the curi column family of the url table restricted to
+     * cells written in [minTime, maxTime).
+     *
+     * @param parameters the table layout
+     * @param minTime minimum timestamp, inclusive
+     * @param maxTime maximum timestamp, exclusive
+     * @throws IOException if the time range is invalid
+     */
+    public static Scan createTimeRangeScan(final HBaseParameters parameters,
+        final long minTime, final long maxTime) throws IOException {
+      Scan scan = new Scan();
+      scan.addFamily(Bytes.toBytes(parameters.getCuriColumnFamily()));
+      scan.setTimeRange(minTime, maxTime);
+      scan.setMaxVersions(1);
+      scan.setCaching(DEFAULT_CACHING);
+      // a one off pass over the table shouldn't evict the serving working set
+      scan.setCacheBlocks(false);
+      return scan;
+    }
+
+    /**
+     * Create a scan of everything written since the given time, e.g. the
+     * start of the last crawl.
+     */
+    public static Scan createChangedSinceScan(final HBaseParameters parameters,
+        final long sinceTime) throws IOException {
+      return createTimeRangeScan(parameters, sinceTime, Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+/**
+ * Table bootstrap for the url, content and index tables described by
+ * {@link HBaseParameters}.
+ */
+public class HBaseSchema {
+
+    private static final Logger LOG = Logger.getLogger(HBaseSchema.class.getName());
+
+    private HBaseSchema() {
+    }
+
+    /**
+     * Create the url, content and any index tables if they don't exist yet.
+     * Column families get the max versions and time to live configured in
+     * the parameters; existing tables are left as they are.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static void createTables(final Configuration conf,
+        final HBaseParameters parameters) throws IOException {
+      HBaseAdmin admin = new HBaseAdmin(conf);
+      for (Map.Entry<String, String[]> table : getTableFamilies(parameters)
+          .entrySet()) {
+        createTable(admin, parameters, table.getKey(), table.getValue());
+      }
+    }
+
+    /**
+     * @return the tables the writers write to, with the column families
+     *         each needs
+     */
+    public static Map<String, String[]> getTableFamilies(
+        final HBaseParameters parameters) {
+      Map<String, String[]> tables = new LinkedHashMap<String, String[]>();
+      tables.put(parameters.getUrlTableName(),
+          new String[] { parameters.getCuriColumnFamily() });
+      if (parameters.isCompactNonHttpRecords()
+          && parameters.getNonHttpTableName() != null
+          && parameters.getNonHttpTableName().length() > 0) {
+        tables.put(parameters.getNonHttpTableName(),
+            new String[] { parameters.getCuriColumnFamily() });
+      }
+      // the content table also keeps the back references to url rows
+      tables.put(parameters.getContentTableName(), new String[] {
+          parameters.getContentColumnFamily(), parameters.getCuriColumnFamily() });
+      for (String indexTableName : new String[] {
+          parameters.getHostIndexTableName(),
+          parameters.getMimeTypeIndexTableName(),
+          parameters.getStatusIndexTableName() }) {
+        if (indexTableName != null && indexTableName.length() > 0) {
+          tables.put(indexTableName,
+              new String[] { parameters.getIndexColumnFamily() });
+        }
+      }
+      return tables;
+    }
+
+    /**
+     * Check that a table has the column families the writers need.
+     *
+     * @throws IOException if the table is missing, can't be read or lacks a
+     *           family
+     */
+    public static void validateTable(final HTableInterface table,
+        final String tableName, final String... families) throws IOException {
+      HTableDescriptor descriptor = table.getTableDescriptor();
+      if (descriptor == null) {
+        throw new IOException("No descriptor for table " + tableName);
+      }
+      for (String family : families) {
+        if (!descriptor.hasFamily(Bytes.toBytes(family))) {
+          throw new IOException("Table " + tableName
+              + " has no column family " + family);
+        }
+      }
+    }
+
+    static void createTable(final HBaseAdmin admin,
+        final HBaseParameters parameters, final String tableName,
+        final String... families) throws IOException {
+      if (admin.tableExists(tableName)) {
+        return;
+      }
+      HTableDescriptor descriptor = new HTableDescriptor(tableName);
+      for (String family : families) {
+        descriptor.addFamily(createFamily(parameters, family));
+      }
+      LOG.info("Creating table " + descriptor);
+      admin.createTable(descriptor);
+    }
+
+    static HColumnDescriptor createFamily(final HBaseParameters parameters,
+        final String family) {
+      HColumnDescriptor descriptor = new HColumnDescriptor(family);
+      descriptor.setMaxVersions(parameters.getMaxVersions());
+      descriptor.setTimeToLive(parameters.getTimeToLive());
+      return descriptor;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTableInterface;
+
+/**
+ * Creates the table instances writers and readers talk to. The default
+ * opens real {@link org.apache.hadoop.hbase.client.HTable}s; tests and load
+ * generators can substitute their own tables.
+ *
+ * @see DefaultTableFactory
+ */
+public interface HBaseTableFactory {
+
+    /**
+     * Open a table for a single thread's use. Writes to it are buffered
+     * until flushCommits.
+     *
+     * @param conf the HBase client configuration
+     * @param tableName name of the table
+     * @param parameters the table layout and client settings
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    HTableInterface createTable(Configuration conf, String tableName,
+        HBaseParameters parameters) throws IOException;
+}
@@ -24,17 +24,25 @@ import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HConstants;
-import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.io.IOUtils;
+import org.apache.log4j.Logger;
 
 import org.archive.io.RecordingInputStream;
 import org.archive.io.RecordingOutputStream;
@@ -46,10 +54,105 @@ import org.archive.modules.CrawlURI;
  * HBase implementation.
  */
 public class HBaseWriter extends WriterPoolMember {
-  
+
+    private static final Logger LOG = Logger.getLogger(HBaseWriter.class.getName());
+
     private HBaseParameters hbaseOptions;
-    private final HTable contentTable;
-    private final HTable urlTable;
+    private final HTableInterface contentTable;
+    private final HTableInterface urlTable;
+
+    /** table of compact dns: and whois: rows, the url table unless configured */
+    private final HTableInterface nonHttpTable;
+
+    /** secondary indexes of the url table, empty if none are configured */
+    private final List<SecondaryIndex> indexes = new ArrayList<SecondaryIndex>();
+
+    /** url row key to last written content hash, only used in revisit mode */
+    private DigestCache digestCache;
+
+    /** splits content into chunks, only used with chunked content */
+    private ContentChunker chunker;
+
+    /** hashes of chunks recently written, only used with chunked content */
+    private DigestCache chunkCache;
+
+    /**
+     * Chunks whose puts wait for the next flush. They only go to the shared
+     * chunk cache once stored, so other writers don't skip chunks that may
+     * never be written.
+     */
+    private final Map<String, byte[]> pendingChunks = new HashMap<String, byte[]>();
+
+    /** optional sidecar log of written url rows */
+    private ChangeFeed changeFeed;
+
+    /** optional budget shared with the other writers for buffered records */
+    private MemoryBudget memoryBudget;
+
+    /** optional controller shared with the other writers, fed with call latencies */
+    private AdmissionController admissionController;
+
+    /** optional breakers shared with the other writers, one per table */
+    private CircuitBreaker urlBreaker;
+    private CircuitBreaker contentBreaker;
+
+    /** optional hedged existence lookups shared with the other writers */
+    private HedgedLookup urlLookup;
+
+    /** bytes reserved for records not flushed yet */
+    private volatile long pendingBytes = 0;
+
+    /** recorded bytes of the records written, in place of a file position */
+    private volatile long position = 0;
+
+    /** when the last record was written, for the pool to find idle writers */
+    private volatile long lastWriteTime = 0;
+
+    /**
+     * Puts waiting for the next flush. They are kept here rather than in the
+     * client write buffer so a flush can send them in row key order.
+     */
+    private final List<Put> pendingContentPuts = new ArrayList<Put>();
+    private final List<Put> pendingUrlPuts = new ArrayList<Put>();
+    private final List<Put> pendingNonHttpPuts = new ArrayList<Put>();
+
+    /**
+     * The url rows of pendingUrlPuts. They are announced to the change feed
+     * and their hashes remembered in the digest cache once they are stored.
+     */
+    private final List<PendingRow> pendingRows = new ArrayList<PendingRow>();
+
+    /**
+     * Hashes whose empty placeholder this writer put in the content table
+     * for content in pendingContentPuts. If the content flush fails they
+     * are removed again, as every later fetch of the hash would otherwise
+     * take the content as stored.
+     */
+    private final List<byte[]> pendingPlaceholders = new ArrayList<byte[]>();
+
+    /** a url row waiting for the next flush */
+    private static class PendingRow {
+      final byte[] rowKey;
+      final byte[] hashKey;
+      final boolean revisit;
+
+      PendingRow(final byte[] rowKey, final byte[] hashKey,
+          final boolean revisit) {
+        this.rowKey = rowKey;
+        this.hashKey = hashKey;
+        this.revisit = revisit;
+      }
+    }
+
+    private static final Comparator<Put> ROW_ORDER = new Comparator<Put>() {
+      @Override
+      public int compare(Put a, Put b) {
+        return Bytes.compareTo(a.getRow(), b.getRow());
+      }
+    };
+
+    /** bytes reserved for the url row of a record, whatever its scope */
+    private static final long METADATA_SIZE_ESTIMATE = 512;
 
     private static final Pattern URI_RE_PARSER =
       Pattern.compile("^([^:/?#]+://(?:[^/?#@]+@)?)([^:/?#]+)(.*)$");
@@ -61,22 +164,187 @@ public class HBaseWriter extends WriterPoolMember {
      */
     public HBaseWriter(final Configuration conf, 
         final HBaseParameters parameters) throws IOException {
+      this(conf, parameters, new DefaultTableFactory());
+    }
+
+    /**
+     * Instantiates a new HBaseWriter writing to tables of the given factory.
+     * 
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public HBaseWriter(final Configuration conf, 
+        final HBaseParameters parameters, final HBaseTableFactory tableFactory)
+        throws IOException {
       super(null, new HBaseWriterPoolSettings(), null);
       this.hbaseOptions = parameters;
-      this.contentTable = new HTable(conf, hbaseOptions.getContentTableName());
-      this.contentTable.setAutoFlush(false);
-      this.urlTable = new HTable(conf, hbaseOptions.getUrlTableName());
-      this.urlTable.setAutoFlush(false);
+      this.contentTable = tableFactory.createTable(conf,
+          hbaseOptions.getContentTableName(), hbaseOptions);
+      this.urlTable = tableFactory.createTable(conf,
+          hbaseOptions.getUrlTableName(), hbaseOptions);
+      String nonHttpTableName = hbaseOptions.getNonHttpTableName();
+      if (hbaseOptions.isCompactNonHttpRecords() && nonHttpTableName != null
+          && nonHttpTableName.length() > 0) {
+        this.nonHttpTable = tableFactory.createTable(conf, nonHttpTableName,
+            hbaseOptions);
+      } else {
+        this.nonHttpTable = this.urlTable;
+      }
+      addIndex(SecondaryIndex.Kind.HOST, hbaseOptions.getHostIndexTableName(),
+          conf, tableFactory);
+      addIndex(SecondaryIndex.Kind.MIME_TYPE,
+          hbaseOptions.getMimeTypeIndexTableName(), conf, tableFactory);
+      addIndex(SecondaryIndex.Kind.STATUS,
+          hbaseOptions.getStatusIndexTableName(), conf, tableFactory);
+      if (hbaseOptions.isRevisitMode()) {
+        this.digestCache = new DigestCache(hbaseOptions.getRevisitCacheSize());
+      }
+      if (hbaseOptions.isChunkedContent()) {
+        this.chunker = new ContentChunker(hbaseOptions);
+        this.chunkCache = new DigestCache(hbaseOptions.getChunkCacheSize());
+      }
+    }
+
+    private void addIndex(final SecondaryIndex.Kind kind,
+        final String tableName, final Configuration conf,
+        final HBaseTableFactory tableFactory) throws IOException {
+      if (tableName != null && tableName.length() > 0) {
+        indexes.add(new SecondaryIndex(kind,
+            tableFactory.createTable(conf, tableName, hbaseOptions), hbaseOptions));
+      }
     }
 
-    public HTable getContentTable() {
+    public HTableInterface getContentTable() {
       return contentTable;
     }
 
-    public HTable getUrlTable() {
+    public HTableInterface getUrlTable() {
       return urlTable;
     }
 
+    public HTableInterface getNonHttpTable() {
+      return nonHttpTable;
+    }
+
+    public List<SecondaryIndex> getIndexes() {
+      return indexes;
+    }
+
+    public DigestCache getDigestCache() {
+      return digestCache;
+    }
+
+    /**
+     * Share a digest cache between writers, e.g. all members of a pool.
+     */
+    public void setDigestCache(DigestCache digestCache) {
+      this.digestCache = digestCache;
+    }
+
+    public DigestCache getChunkCache() {
+      return chunkCache;
+    }
+
+    /**
+     * Share the cache of written chunks between writers.
+     */
+    public void setChunkCache(DigestCache chunkCache) {
+      this.chunkCache = chunkCache;
+    }
+
+    public ChangeFeed getChangeFeed() {
+      return changeFeed;
+    }
+
+    public void setChangeFeed(ChangeFeed changeFeed) {
+      this.changeFeed = changeFeed;
+    }
+
+    public MemoryBudget getMemoryBudget() {
+      return memoryBudget;
+    }
+
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+      this.memoryBudget = memoryBudget;
+    }
+
+    public AdmissionController getAdmissionController() {
+      return admissionController;
+    }
+
+    public void setAdmissionController(AdmissionController admissionController) {
+      this.admissionController = admissionController;
+    }
+
+    public void setCircuitBreakers(CircuitBreaker urlBreaker,
+        CircuitBreaker contentBreaker) {
+      this.urlBreaker = urlBreaker;
+      this.contentBreaker = contentBreaker;
+    }
+
+    public void setUrlLookup(HedgedLookup urlLookup) {
+      this.urlLookup = urlLookup;
+    }
+
+    /**
+     * Check whether a url row exists, through the hedged lookup and the url
+     * table circuit breaker if configured.
+     *
+     * @param rowKey the url row key
+     * @return true if the row exists
+     * @throws CircuitOpenException if the url table breaker is open
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public boolean exists(final byte[] rowKey) throws IOException {
+      if (urlBreaker != null && !urlBreaker.allowRequest()) {
+        throw new CircuitOpenException("Circuit breaker for "
+            + hbaseOptions.getUrlTableName() + " is open");
+      }
+      Get get = new Get(rowKey);
+      long start = System.nanoTime();
+      boolean success = false;
+      try {
+        boolean exists = urlLookup != null ? urlLookup.exists(get)
+            : urlTable.exists(get);
+        success = true;
+        return exists;
+      } finally {
+        long latency = System.nanoTime() - start;
+        if (urlBreaker != null) {
+          urlBreaker.record(latency, success);
+        }
+        if (admissionController != null) {
+          admissionController.record(AdmissionController.Operation.GET,
+              latency, success);
+        }
+      }
+    }
+
+    /**
+     * The recorded bytes, request and response, of the records written so
+     * far, within their write scope. There is no file whose position the
+     * processor could count its total bytes written with, so this stands in.
+     *
+     * @return recorded bytes written
+     */
+    @Override
+    public long getPosition() {
+      return position;
+    }
+
+    /**
+     * @return bytes of records written but not flushed yet
+     */
+    public long getPendingBytes() {
+      return pendingBytes;
+    }
+
+    /**
+     * @return when the last record was written, 0 if none was
+     */
+    public long getLastWriteTime() {
+      return lastWriteTime;
+    }
+
     /**
      * Write the crawled output to the configured HBase table.
      * Write each row key as the url with reverse domain and optionally process any content.
@@ -90,6 +358,252 @@ public class HBaseWriter extends WriterPoolMember {
      */
     public void write(final CrawlURI curi, final String ip, final RecordingOutputStream recordingOutputStream, 
             final RecordingInputStream recordingInputStream) throws IOException {
+        write(curi, ip, recordingOutputStream, recordingInputStream,
+            WriteScope.ALL);
+    }
+
+    /**
+     * Write the parts of the crawled output within the given scope. Parts
+     * outside of it are not read from the recorder at all.
+     *
+     * Writing, flushing and closing are synchronized so the pool can flush
+     * a writer at a checkpoint while a ToeThread may hold it; otherwise a
+     * writer is only used by the thread that borrowed it and the lock is
+     * uncontended.
+     *
+     * @param curi URI of crawled document
+     * @param ip IP of remote machine.
+     * @param recordingOutputStream recording input stream that captured the response
+     * @param recordingInputStream recording output stream that captured the GET request
+     * @param scope what to write
+     * 
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public synchronized void write(final CrawlURI curi, final String ip, final RecordingOutputStream recordingOutputStream, 
+            final RecordingInputStream recordingInputStream,
+            final WriteScope scope) throws IOException {
+        boolean compact = hbaseOptions.isCompactNonHttpRecords()
+            && isNonHttpRecord(curi.toString());
+        // reserve before any copy of the record is taken
+        long size = METADATA_SIZE_ESTIMATE;
+        if (compact) {
+          if (scope.includesHeaders()) {
+            size += recordingInputStream.getSize();
+          }
+        } else if (scope.includesContent()) {
+          size += recordingOutputStream.getSize() + recordingInputStream.getSize();
+        } else if (scope.includesHeaders()) {
+          size += recordingOutputStream.getSize() + Math.max(0,
+              recordingInputStream.getSize() - curi.getContentLength());
+        }
+        boolean withinBudget = reserve(size);
+        if (compact) {
+          writeNonHttpRecord(curi, ip, recordingInputStream, scope);
+        } else {
+          writeRecord(curi, ip, recordingOutputStream, recordingInputStream, scope);
+        }
+        position += size - METADATA_SIZE_ESTIMATE;
+        if (!withinBudget || pendingBytes >= getFlushThreshold()) {
+          flushCommits();
+        }
+        lastWriteTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Flush the buffered puts of both tables and give the memory they held
+     * back to the budget.
+     *
+     * Pending puts are sorted by row key first. Regions are contiguous key
+     * ranges, so the sorted batch arrives grouped by region and in key order
+     * within each region; the client then sends one multi-put per region
+     * server, in parallel up to hbase.htable.threads.max. Index rows go
+     * last, so they don't point at url rows that failed to be written.
+     *
+     * If the content flush fails, the url and index rows of the batch are
+     * dropped rather than written, as they may point at content that isn't
+     * stored, and the placeholders of the batch's content are removed, so
+     * the next fetch of the content stores it. Either way every pending put
+     * is gone afterwards, so the memory released is exactly what the batch
+     * held.
+     *
+     * Stored url rows are appended to the change feed, if any. An append
+     * that fails once the feed has waited for room fails the flush too,
+     * after the index rows are written, and the rest of the batch is
+     * counted as lost by the feed instead of waiting again.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public synchronized void flushCommits() throws IOException {
+      IOException failure = null;
+      IOException feedFailure = null;
+      boolean contentFlushed = false;
+      boolean urlFlushed = false;
+      try {
+        try {
+          flushPuts(contentTable, pendingContentPuts);
+          contentFlushed = true;
+          for (Map.Entry<String, byte[]> chunk : pendingChunks.entrySet()) {
+            chunkCache.put(chunk.getKey(), chunk.getValue());
+          }
+          flushPuts(urlTable, pendingUrlPuts);
+          urlFlushed = true;
+          int fed = 0;
+          for (PendingRow row : pendingRows) {
+            if (changeFeed != null && feedFailure == null) {
+              try {
+                changeFeed.append(row.rowKey, row.hashKey, row.revisit);
+                fed++;
+              } catch (IOException e) {
+                // the rows are stored, keep going and fail the flush after
+                LOG.warn("Change feed is behind, " + (pendingRows.size() - fed)
+                    + " url rows not recorded", e);
+                changeFeed.markLost(pendingRows.size() - fed - 1);
+                feedFailure = e;
+              }
+            }
+            if (digestCache != null && row.hashKey != null) {
+              digestCache.put(Bytes.toString(row.rowKey), row.hashKey);
+            }
+          }
+          for (SecondaryIndex index : indexes) {
+            flushPuts(index.getTable(), index.getPendingPuts());
+          }
+        } catch (IOException e) {
+          if (!contentFlushed) {
+            removePlaceholders();
+            if (!pendingUrlPuts.isEmpty()) {
+              LOG.warn("Dropping " + pendingUrlPuts.size()
+                  + " url rows after a failed content flush");
+            }
+          } else if (!urlFlushed) {
+            LOG.warn("Failed to flush " + pendingUrlPuts.size() + " url rows");
+          } else {
+            LOG.warn("Failed to flush the index rows of "
+                + pendingUrlPuts.size() + " url rows");
+          }
+          failure = e;
+        }
+        // compact rows of their own table don't depend on content
+        try {
+          flushPuts(nonHttpTable, pendingNonHttpPuts);
+        } catch (IOException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+        if (failure == null) {
+          failure = feedFailure;
+        }
+      } finally {
+        discardPending();
+        if (memoryBudget != null) {
+          memoryBudget.release(pendingBytes);
+        }
+        pendingBytes = 0;
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
+    /**
+     * Remove the placeholders of content whose flush failed. Only a still
+     * empty value is deleted: content another writer stored meanwhile, or
+     * that made it out in part of the failed flush, is kept. A placeholder
+     * that can't be removed is logged with its hash.
+     */
+    private void removePlaceholders() {
+      byte[] contentFamily = Bytes.toBytes(hbaseOptions.getContentColumnFamily());
+      byte[] contentQualifier = Bytes.toBytes(hbaseOptions.getContentColumnName());
+      for (byte[] hashKey : pendingPlaceholders) {
+        try {
+          contentTable.checkAndDelete(hashKey, contentFamily, contentQualifier,
+              HConstants.EMPTY_BYTE_ARRAY, new Delete(hashKey).deleteColumns(
+                  contentFamily, contentQualifier));
+        } catch (IOException e) {
+          LOG.error("Failed to remove the content placeholder of "
+              + Bytes.toStringBinary(hashKey) + ": " + e.getMessage());
+        }
+      }
+    }
+
+    /**
+     * Drop whatever a failed flush left pending.
+     */
+    private void discardPending() {
+      pendingContentPuts.clear();
+      pendingPlaceholders.clear();
+      pendingChunks.clear();
+      pendingUrlPuts.clear();
+      pendingRows.clear();
+      pendingNonHttpPuts.clear();
+      for (SecondaryIndex index : indexes) {
+        index.getPendingPuts().clear();
+      }
+    }
+
+    private void flushPuts(final HTableInterface table, final List<Put> puts)
+        throws IOException {
+      if (puts.isEmpty()) {
+        return;
+      }
+      long start = System.nanoTime();
+      boolean success = false;
+      try {
+        // stable, so puts to the same row keep their arrival order
+        Collections.sort(puts, ROW_ORDER);
+        table.put(puts);
+        table.flushCommits();
+        success = true;
+      } finally {
+        puts.clear();
+        record(AdmissionController.Operation.FLUSH, start, success);
+      }
+    }
+
+    /**
+     * @return pending bytes at which a write flushes, adapted to cluster
+     *         latency when an admission controller is set
+     */
+    private long getFlushThreshold() {
+      if (admissionController != null) {
+        return Math.min(hbaseOptions.getWriteBufferSize(),
+            admissionController.getBatchBytes());
+      }
+      return hbaseOptions.getWriteBufferSize();
+    }
+
+    private void record(final AdmissionController.Operation operation,
+        final long startNanos, final boolean success) {
+      if (admissionController != null) {
+        admissionController.record(operation, System.nanoTime() - startNanos,
+            success);
+      }
+    }
+
+    private boolean reserve(final long bytes) throws IOException {
+      boolean withinBudget = true;
+      if (memoryBudget != null && !memoryBudget.tryReserve(bytes)) {
+        if (pendingBytes > 0) {
+          // what this writer holds only comes back when it flushes, so
+          // don't wait for others while holding it
+          flushCommits();
+        }
+        try {
+          withinBudget = memoryBudget.reserve(bytes);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted waiting for write buffer memory");
+        }
+      }
+      pendingBytes += bytes;
+      return withinBudget;
+    }
+
+    private void writeRecord(final CrawlURI curi, final String ip,
+        final RecordingOutputStream recordingOutputStream,
+        final RecordingInputStream recordingInputStream,
+        final WriteScope scope) throws IOException {
         String url = curi.toString();
 
         byte[] rowKey = HBaseWriter.createURLKey(url);
@@ -99,13 +613,59 @@ public class HBaseWriter extends WriterPoolMember {
         byte[] contentFamily =
             Bytes.toBytes(hbaseOptions.getContentColumnFamily());
 
-        Put curiPut = new Put(rowKey);
+        // response
+        byte[] responseHeaders = null;
+        byte[] content = null;
+        if (scope.includesHeaders()) {
+          ReplayInputStream response = recordingInputStream.getReplayInputStream();
+          try {
+            // headers
+            if (response.getHeaderSize() > 0) {
+              ByteArrayOutputStream os = new ByteArrayOutputStream();
+              response.readHeaderTo(os);
+              responseHeaders = os.toByteArray();
+            }
+
+            // content
+            if (scope.includesContent() && response.getContentSize() > 0) {
+              ByteArrayOutputStream os = new ByteArrayOutputStream();
+              response.readContentTo(os);
+              content = os.toByteArray();
+            }
+          } finally {
+            IOUtils.closeStream(response);
+          }
+        }
+
+        long timestamp = getCellTimestamp(curi);
+
+        byte[] hashKey = null;
+        if (content != null) {
+          hashKey = HBaseWriter.createHashKey(content);
+          // on a recrawl of an unchanged document only note the revisit
+          if (isUnchanged(rowKey, hashKey)) {
+            pendingUrlPuts.add(createRevisitPut(curi, rowKey));
+            // the status may have changed with the content unchanged
+            for (SecondaryIndex index : indexes) {
+              index.addRevisit(curi, rowKey, timestamp, hashKey);
+            }
+            pendingRows.add(new PendingRow(rowKey, hashKey, true));
+            return;
+          }
+        }
+
+        Put curiPut = new Put(rowKey, timestamp);
 
         // status
         curiPut.add(curiFamily,
             Bytes.toBytes(hbaseOptions.getStatusColumnName()),
             Bytes.toBytes(curi.getFetchStatus()));
 
+        // fetch time
+        curiPut.add(curiFamily,
+            Bytes.toBytes(hbaseOptions.getFetchTimeColumnName()),
+            Bytes.toBytes(curi.getFetchBeginTime()));
+
         // write the target url to the url column
         curiPut.add(curiFamily,
             Bytes.toBytes(hbaseOptions.getUrlColumnName()),
@@ -155,7 +715,7 @@ public class HBaseWriter extends WriterPoolMember {
         }
 
         // request
-        if (recordingOutputStream.getSize() > 0) {
+        if (scope.includesHeaders() && recordingOutputStream.getSize() > 0) {
           ReplayInputStream request = recordingOutputStream.getReplayInputStream();
           try {
             ByteArrayOutputStream os = new ByteArrayOutputStream();
@@ -168,63 +728,287 @@ public class HBaseWriter extends WriterPoolMember {
           }
         }
 
-        // response
+        // response headers
+        if (responseHeaders != null) {
+          curiPut.add(curiFamily,
+              Bytes.toBytes(hbaseOptions.getResponseColumnName()),
+              responseHeaders);
+        }
 
-        ReplayInputStream response = recordingInputStream.getReplayInputStream();
-        try {
+        // content
+        if (content != null) {
+          curiPut.add(curiFamily,
+              Bytes.toBytes(hbaseOptions.getHashColumnName()), hashKey);
 
-          // headers
-          if (response.getHeaderSize() > 0) {
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            response.readHeaderTo(os);
-            curiPut.add(curiFamily,
-                Bytes.toBytes(hbaseOptions.getResponseColumnName()),
-                os.toByteArray());
-          }
+          List<Put> puts = new ArrayList<Put>(2);
 
-          // content
-          if (response.getContentSize() > 0) {
-            ByteArrayOutputStream os = new ByteArrayOutputStream();            
-            response.readContentTo(os);
-            byte[] content = os.toByteArray();
+          puts.add(new Put(hashKey, timestamp).add(curiFamily, rowKey,
+              HConstants.EMPTY_BYTE_ARRAY)); // store something useful?
 
-            byte[] hashKey = HBaseWriter.createHashKey(content);
+          byte[] contentQualifier =
+              Bytes.toBytes(hbaseOptions.getContentColumnName());
+          // if existence check fails, store an placeholder atomically
+          boolean stored;
+          if (contentBreaker != null && !contentBreaker.allowRequest()) {
+            // dedup is unavailable; the row is keyed by the content hash, so
+            // storing a duplicate only costs an extra version
+            stored = true;
+          } else {
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+              stored = contentTable.checkAndPut(hashKey, contentFamily,
+                  contentQualifier, null,
+                  new Put(hashKey, timestamp)
+                    .add(contentFamily, contentQualifier,
+                       HConstants.EMPTY_BYTE_ARRAY));
+              success = true;
+              if (stored) {
+                pendingPlaceholders.add(hashKey);
+              }
+            } finally {
+              if (contentBreaker != null) {
+                contentBreaker.record(System.nanoTime() - start, success);
+              }
+              record(AdmissionController.Operation.CHECK_AND_PUT, start, success);
+            }
+          }
+          if (stored) {
+            // and follow up with a (write buffered) store of the real
+            // content
+            addContentPuts(puts, hashKey, content, timestamp);
+          }
 
-            curiPut.add(curiFamily,
-                Bytes.toBytes(hbaseOptions.getHashColumnName()), hashKey);
+          pendingContentPuts.addAll(puts);
+        }
 
-            List<Put> puts = new ArrayList<Put>(2);
+        pendingUrlPuts.add(curiPut);
+        for (SecondaryIndex index : indexes) {
+          index.add(curi, rowKey, timestamp, hashKey);
+        }
+        pendingRows.add(new PendingRow(rowKey, hashKey, false));
+    }
 
-            puts.add(new Put(hashKey).add(curiFamily, rowKey,
-                HConstants.EMPTY_BYTE_ARRAY)); // store something useful?
+    /**
+     * @return true for the dns: and whois: records written compactly with
+     *         {@link HBaseParameters#isCompactNonHttpRecords()}
+     */
+    public static boolean isNonHttpRecord(final String url) {
+      return url.startsWith("dns:") || url.startsWith("whois:");
+    }
 
-            byte[] contentQualifier =
-                Bytes.toBytes(hbaseOptions.getContentColumnName());
-            // if existence check fails, store an placeholder atomically
-            if (contentTable.checkAndPut(hashKey, contentFamily,
-                  contentQualifier, null,
-                  new Put(hashKey)
-                    .add(contentFamily, contentQualifier,
-                       HConstants.EMPTY_BYTE_ARRAY))) {
-              // and follow up with a (write buffered) store of the real
-              // content
-              puts.add(new Put(hashKey).add(contentFamily, contentQualifier,
-                  content));
-            }
+    /**
+     * Write a dns: or whois: record as one row: no content hashing, no
+     * content table round trip and no index rows. The payload, the lookup
+     * result, is kept whole in the response column unless the scope is
+     * metadata only.
+     */
+    private void writeNonHttpRecord(final CrawlURI curi, final String ip,
+        final RecordingInputStream recordingInputStream,
+        final WriteScope scope) throws IOException {
+      String url = curi.toString();
+      byte[] rowKey = HBaseWriter.createURLKey(url);
+      byte[] curiFamily = Bytes.toBytes(hbaseOptions.getCuriColumnFamily());
 
-            contentTable.put(puts);
-          }
+      Put put = new Put(rowKey, getCellTimestamp(curi));
+      put.add(curiFamily, Bytes.toBytes(hbaseOptions.getStatusColumnName()),
+          Bytes.toBytes(curi.getFetchStatus()));
+      put.add(curiFamily, Bytes.toBytes(hbaseOptions.getFetchTimeColumnName()),
+          Bytes.toBytes(curi.getFetchBeginTime()));
+      put.add(curiFamily, Bytes.toBytes(hbaseOptions.getUrlColumnName()),
+          Bytes.toBytes(url));
+      if (ip != null) {
+        put.add(curiFamily, Bytes.toBytes(hbaseOptions.getIpColumnName()),
+            Bytes.toBytes(ip));
+      }
+      if (curi.getContentType() != null) {
+        put.add(curiFamily, Bytes.toBytes(hbaseOptions.getMimeTypeColumnName()),
+            Bytes.toBytes(curi.getContentType()));
+      }
+      if (scope.includesHeaders() && recordingInputStream.getSize() > 0) {
+        ReplayInputStream payload = recordingInputStream.getReplayInputStream();
+        try {
+          ByteArrayOutputStream os = new ByteArrayOutputStream(
+              (int) recordingInputStream.getSize());
+          payload.readFullyTo(os);
+          put.add(curiFamily, Bytes.toBytes(hbaseOptions.getResponseColumnName()),
+              os.toByteArray());
         } finally {
-          IOUtils.closeStream(response);
+          IOUtils.closeStream(payload);
         }
+      }
 
-        urlTable.put(curiPut);
+      if (nonHttpTable == urlTable) {
+        pendingUrlPuts.add(put);
+        pendingRows.add(new PendingRow(rowKey, null, false));
+      } else {
+        pendingNonHttpPuts.add(put);
+      }
+    }
+
+    /**
+     * Add the puts storing content under its hash: the content itself, or
+     * with chunked content its manifest and the chunks not known to be
+     * stored already. Content that makes a single chunk is stored whole.
+     */
+    private void addContentPuts(final List<Put> puts, final byte[] hashKey,
+        final byte[] content, final long timestamp) throws IOException {
+      byte[] contentFamily = Bytes.toBytes(hbaseOptions.getContentColumnFamily());
+      byte[] contentQualifier = Bytes.toBytes(hbaseOptions.getContentColumnName());
+      int[] ends = chunker == null ? null : chunker.chunk(content);
+      if (ends == null || ends.length < 2) {
+        puts.add(new Put(hashKey, timestamp).add(contentFamily, contentQualifier,
+            content));
+        return;
+      }
+      List<byte[]> chunkKeys = new ArrayList<byte[]>(ends.length);
+      int[] lengths = new int[ends.length];
+      for (int i = 0, start = 0; i < ends.length; start = ends[i++]) {
+        lengths[i] = ends[i] - start;
+        chunkKeys.add(HBaseWriter.createHashKey(content, start, lengths[i]));
+      }
+      puts.add(new Put(hashKey, timestamp).add(contentFamily,
+          Bytes.toBytes(hbaseOptions.getManifestColumnName()),
+          ChunkManifest.encode(chunkKeys, lengths)));
+      boolean[] stored = findStoredChunks(chunkKeys);
+      for (int i = 0, start = 0; i < ends.length; start = ends[i++]) {
+        String key = Bytes.toStringBinary(chunkKeys.get(i));
+        if (stored[i] || chunkCache.get(key) != null
+            || pendingChunks.containsKey(key)) {
+          continue;
+        }
+        byte[] chunk = new byte[lengths[i]];
+        System.arraycopy(content, start, chunk, 0, lengths[i]);
+        puts.add(new Put(chunkKeys.get(i), timestamp).add(contentFamily,
+            contentQualifier, chunk));
+        // also skips repeats within this document and batch
+        pendingChunks.put(key, chunkKeys.get(i));
+      }
+    }
+
+    /**
+     * Look up the chunks neither in the chunk cache nor pending in this
+     * writer with one multi-get. If the lookup fails or the content breaker
+     * is open every chunk is written; a chunk row is keyed by its hash, so a
+     * duplicate only costs an extra version.
+     *
+     * @return for each chunk, true if it is stored already
+     */
+    private boolean[] findStoredChunks(final List<byte[]> chunkKeys) {
+      boolean[] stored = new boolean[chunkKeys.size()];
+      byte[] contentFamily = Bytes.toBytes(hbaseOptions.getContentColumnFamily());
+      byte[] contentQualifier = Bytes.toBytes(hbaseOptions.getContentColumnName());
+      List<Get> gets = new ArrayList<Get>();
+      List<Integer> looked = new ArrayList<Integer>();
+      for (int i = 0; i < chunkKeys.size(); i++) {
+        String key = Bytes.toStringBinary(chunkKeys.get(i));
+        if (chunkCache.get(key) == null && !pendingChunks.containsKey(key)) {
+          gets.add(new Get(chunkKeys.get(i)).addColumn(contentFamily,
+              contentQualifier));
+          looked.add(Integer.valueOf(i));
+        }
+      }
+      if (gets.isEmpty()
+          || (contentBreaker != null && !contentBreaker.allowRequest())) {
+        return stored;
+      }
+      long start = System.nanoTime();
+      boolean success = false;
+      try {
+        Result[] results = contentTable.get(gets);
+        for (int i = 0; i < results.length; i++) {
+          byte[] value = results[i] == null ? null
+              : results[i].getValue(contentFamily, contentQualifier);
+          // an empty value is the placeholder of a write in progress
+          stored[looked.get(i).intValue()] = value != null && value.length > 0;
+        }
+        success = true;
+      } catch (IOException e) {
+        LOG.warn("Failed to look up stored chunks, writing all of them: "
+            + e.getMessage());
+      } finally {
+        if (contentBreaker != null) {
+          contentBreaker.record(System.nanoTime() - start, success);
+        }
+        record(AdmissionController.Operation.GET, start, success);
+      }
+      return stored;
+    }
+
+    /**
+     * Compare the content hash of a fetch with the one last stored for the url
+     * row, consulting the digest cache before reading the url table. The new
+     * hash is only remembered once the record is flushed, so a failed flush
+     * doesn't make the next fetch a revisit of content never stored.
+     *
+     * @param rowKey the url row key
+     * @param hashKey the content hash of the current fetch
+     * @return true if revisit mode is enabled and the content is unchanged
+     */
+    protected boolean isUnchanged(final byte[] rowKey, final byte[] hashKey) {
+      if (!hbaseOptions.isRevisitMode() || digestCache == null) {
+        return false;
+      }
+      String key = Bytes.toString(rowKey);
+      byte[] stored = digestCache.get(key);
+      if (stored == null) {
+        byte[] curiFamily = Bytes.toBytes(hbaseOptions.getCuriColumnFamily());
+        byte[] hashQualifier = Bytes.toBytes(hbaseOptions.getHashColumnName());
+        long start = System.nanoTime();
+        try {
+          Result result = urlTable.get(new Get(rowKey).addColumn(curiFamily,
+              hashQualifier));
+          record(AdmissionController.Operation.GET, start, true);
+          stored = result.getValue(curiFamily, hashQualifier);
+        } catch (IOException e) {
+          record(AdmissionController.Operation.GET, start, false);
+          LOG.warn("Failed to read stored hash of " + Bytes.toStringBinary(rowKey)
+              + ", writing the full record: " + e.getMessage());
+        }
+      }
+      return stored != null && Bytes.equals(stored, hashKey);
+    }
+
+    /**
+     * The timestamp given to every cell written for a curi: its fetch begin
+     * time if fetch time versioning is enabled, else the server assigned time.
+     */
+    protected long getCellTimestamp(final CrawlURI curi) {
+      if (hbaseOptions.isUseFetchTimestamp() && curi.getFetchBeginTime() > 0) {
+        return curi.getFetchBeginTime();
+      }
+      return HConstants.LATEST_TIMESTAMP;
+    }
+
+    /**
+     * Create the compact marker written for an unchanged revisit: status and
+     * fetch time only, leaving the stored headers and content alone.
+     */
+    protected Put createRevisitPut(final CrawlURI curi, final byte[] rowKey) {
+      byte[] curiFamily = Bytes.toBytes(hbaseOptions.getCuriColumnFamily());
+      byte[] fetchTime = Bytes.toBytes(curi.getFetchBeginTime());
+      Put revisitPut = new Put(rowKey, getCellTimestamp(curi));
+      revisitPut.add(curiFamily,
+          Bytes.toBytes(hbaseOptions.getStatusColumnName()),
+          Bytes.toBytes(curi.getFetchStatus()));
+      revisitPut.add(curiFamily,
+          Bytes.toBytes(hbaseOptions.getFetchTimeColumnName()), fetchTime);
+      revisitPut.add(curiFamily,
+          Bytes.toBytes(hbaseOptions.getRevisitColumnName()), fetchTime);
+      return revisitPut;
     }
 
     @Override
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
+        flushCommits();
         getContentTable().close();
         getUrlTable().close();
+        if (nonHttpTable != urlTable) {
+          nonHttpTable.close();
+        }
+        for (SecondaryIndex index : indexes) {
+          index.getTable().close();
+        }
         super.close();
     }
 
@@ -252,12 +1036,12 @@ public class HBaseWriter extends WriterPoolMember {
     }
 
     public static byte[] createURLKey(final String u) {
+      // dns "URLs" have no scheme separator, so don't bother the parser
+      if (u != null && u.startsWith("dns:")) {
+        return Bytes.toBytes(reverseHostname(u.substring(4)));
+      }
       Matcher m = getMatcher(u);
       if (m == null || !m.matches()) {
-        // dns "URLs" don't match as them
-        if (u.startsWith("dns:")) {
-          return Bytes.toBytes(reverseHostname(u.substring(4)));
-        }
         // If no match, return original String.
         return Bytes.toBytes(u);
       }
@@ -271,10 +1055,17 @@ public class HBaseWriter extends WriterPoolMember {
     }
 
     public static byte[] createHashKey(byte[] content) throws IOException {
+      return createHashKey(content, 0, content.length);
+    }
+
+    public static byte[] createHashKey(byte[] content, int offset, int length)
+        throws IOException {
       try {
-        return MessageDigest.getInstance("SHA1").digest(content);
+        MessageDigest digest = MessageDigest.getInstance("SHA1");
+        digest.update(content, offset, length);
+        return digest.digest();
       } catch (NoSuchAlgorithmException e) {
         throw new IOException(e);
-      }      
+      }
     }
 }
\ No newline at end of file
@@ -19,11 +19,28 @@
 package org.archive.io.hbase;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HServerAddress;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.log4j.Logger;
 import org.archive.io.WriterPool;
 import org.archive.io.WriterPoolMember;
 
@@ -32,12 +49,54 @@ import org.archive.io.WriterPoolMember;
  */
 public class HBaseWriterPool extends WriterPool {
 
+    private static final Logger LOG = Logger.getLogger(HBaseWriterPool.class.getName());
+
+    /** how often idle writers are looked for while a memory budget is set */
+    public static final long IDLE_FLUSH_INTERVAL_MS = 100;
+
     private Configuration conf;
     private HBaseParameters parameters;
+    private HBaseTableFactory tableFactory;
+
+    /** shared by all writers so revisits are recognized whichever writer wrote last */
+    private DigestCache digestCache;
+
+    /** shared by all writers so a chunk written by one isn't written again by another */
+    private DigestCache chunkCache;
+
+    private ChangeFeed changeFeed;
+
+    private volatile MemoryBudget memoryBudget;
+
+    /** flushes idle writers so their reservations aren't held indefinitely */
+    private ScheduledExecutorService idleFlusher;
+
+    private AdmissionController admissionController;
+
+    /**
+     * every open writer, idle or borrowed, so all can be flushed at once;
+     * writers leave it when they close
+     */
+    private final List<HBaseWriter> writers = new CopyOnWriteArrayList<HBaseWriter>();
+
+    /** writers bound to host stripes, null unless striping is on */
+    private volatile HBaseWriter[] stripes;
+
+    private CircuitBreaker urlBreaker;
+    private CircuitBreaker contentBreaker;
+    private HedgedLookup urlLookup;
 
     public HBaseWriterPool(final AtomicInteger serial, final String zkQuorum,
         final int zkClientPort, final HBaseParameters parameters,
         final int poolMaximumActive, final int poolMaximumWait) {
+        this(serial, zkQuorum, zkClientPort, parameters, poolMaximumActive,
+            poolMaximumWait, new DefaultTableFactory());
+    }
+
+    public HBaseWriterPool(final AtomicInteger serial, final String zkQuorum,
+        final int zkClientPort, final HBaseParameters parameters,
+        final int poolMaximumActive, final int poolMaximumWait,
+        final HBaseTableFactory tableFactory) {
         super(
             // a serial 
             serial, 
@@ -50,6 +109,30 @@ public class HBaseWriterPool extends WriterPool {
         this.conf = HBaseConfiguration.create();
 
         this.parameters = parameters;
+        this.tableFactory = tableFactory;
+
+        if (parameters.isRevisitMode()) {
+            this.digestCache = new DigestCache(parameters.getRevisitCacheSize());
+        }
+
+        if (parameters.isChunkedContent()) {
+            this.chunkCache = new DigestCache(parameters.getChunkCacheSize());
+        }
+
+        if (parameters.getBreakerFailureThreshold() > 0) {
+            this.urlBreaker = new CircuitBreaker(parameters.getUrlTableName(),
+                parameters.getBreakerFailureThreshold(),
+                parameters.getBreakerOpenMs(), parameters.getBreakerSlowCallMs());
+            this.contentBreaker = new CircuitBreaker(
+                parameters.getContentTableName(),
+                parameters.getBreakerFailureThreshold(),
+                parameters.getBreakerOpenMs(), parameters.getBreakerSlowCallMs());
+        }
+
+        if (parameters.isHedgeLookups()) {
+            this.urlLookup = new HedgedLookup(this.conf,
+                parameters.getUrlTableName(), parameters, tableFactory);
+        }
 
         // set the zk quorum list
         if (zkQuorum != null && zkQuorum.length() > 0) {
@@ -60,13 +143,363 @@ public class HBaseWriterPool extends WriterPool {
         if (zkClientPort > 0) {
             this.conf.setInt("hbase.zookeeper.property.clientPort", zkClientPort);
         }
+
+        // bound the threads each table uses to send a flush to region servers
+        if (parameters.getFlushConcurrency() > 0) {
+            this.conf.setInt("hbase.htable.threads.max",
+                parameters.getFlushConcurrency());
+        }
+    }
+
+    /**
+     * Create the url and content tables if they are missing.
+     *
+     * @see HBaseSchema#createTables(Configuration, HBaseParameters)
+     */
+    public void createTables() throws IOException {
+      HBaseSchema.createTables(this.conf, parameters);
+    }
+
+    /**
+     * Check that every table the writers use exists and has the column
+     * families they need, and optionally put the locations of all their
+     * regions in the connection's region cache, which all writers of the
+     * configuration share, so the first writes don't each look them up in
+     * META.
+     *
+     * @param prefetchRegions whether to cache region locations
+     * @return number of regions whose location was cached
+     * @throws IOException if a table is missing or lacks a family
+     */
+    public int validateTables(final boolean prefetchRegions) throws IOException {
+      int regions = 0;
+      for (Map.Entry<String, String[]> entry : HBaseSchema.getTableFamilies(
+          parameters).entrySet()) {
+        HTableInterface table = tableFactory.createTable(conf, entry.getKey(),
+            parameters);
+        try {
+          HBaseSchema.validateTable(table, entry.getKey(), entry.getValue());
+          if (prefetchRegions) {
+            regions += prefetchRegions(table);
+          }
+        } finally {
+          table.close();
+        }
+      }
+      return regions;
+    }
+
+    /**
+     * Put the locations of all regions of a table in the connection's region
+     * cache. They are read from META in one scan; reading them alone, e.g.
+     * with {@link HTable#getRegionLocations()}, returns a fresh map and
+     * leaves the cache cold. Only clients of a cluster have regions to
+     * cache.
+     *
+     * @return number of regions whose location was cached
+     * @throws IOException if the locations can't be read
+     */
+    protected int prefetchRegions(final HTableInterface table)
+        throws IOException {
+      if (!(table instanceof HTable)) {
+        return 0;
+      }
+      HTable htable = (HTable) table;
+      Map<HRegionInfo, HServerAddress> regions = htable.getRegionsInfo();
+      htable.prefetchRegionCache(regions);
+      return regions.size();
+    }
+
+    /**
+     * Make writers up to the given number in parallel and put them in the
+     * pool, so the crawl doesn't wait for each to open its tables.
+     *
+     * @param writers number of writers wanted
+     * @throws IOException if a writer can't be made
+     */
+    public void warm(final int writers) throws IOException {
+      ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, writers));
+      List<Future<WriterPoolMember>> borrowed =
+          new ArrayList<Future<WriterPoolMember>>(writers);
+      try {
+        for (int i = 0; i < writers; i++) {
+          borrowed.add(executor.submit(new Callable<WriterPoolMember>() {
+            @Override
+            public WriterPoolMember call() throws IOException {
+              return borrowFile();
+            }
+          }));
+        }
+        IOException failure = null;
+        // return every writer made, even if another failed
+        for (Future<WriterPoolMember> writer : borrowed) {
+          try {
+            WriterPoolMember member = writer.get();
+            if (member == null) {
+              throw new IOException("Failed to make a writer");
+            }
+            returnFile(member);
+          } catch (ExecutionException e) {
+            failure = e.getCause() instanceof IOException
+                ? (IOException) e.getCause() : new IOException(e.getCause());
+          } catch (IOException e) {
+            failure = e;
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new IOException("Interrupted warming the writer pool");
+          }
+        }
+        if (failure != null) {
+          throw failure;
+        }
+      } finally {
+        executor.shutdown();
+      }
+    }
+
+    /**
+     * Flush the buffered records of every writer of the pool in parallel,
+     * without closing them, so a checkpoint finds everything written so far
+     * in HBase and the crawl goes on with warm writers. A writer a ToeThread
+     * is writing with is flushed once that record is buffered.
+     *
+     * @return number of writers flushed
+     * @throws IOException if a writer failed to flush; the others still are
+     */
+    public int flushAll() throws IOException {
+      List<HBaseWriter> members = new ArrayList<HBaseWriter>(writers);
+      if (members.isEmpty()) {
+        return 0;
+      }
+      ExecutorService executor = Executors.newFixedThreadPool(members.size());
+      List<Future<Void>> flushes = new ArrayList<Future<Void>>(members.size());
+      try {
+        for (final HBaseWriter writer : members) {
+          flushes.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+              writer.flushCommits();
+              return null;
+            }
+          }));
+        }
+        IOException failure = null;
+        for (Future<Void> flush : flushes) {
+          try {
+            flush.get();
+          } catch (ExecutionException e) {
+            failure = e.getCause() instanceof IOException
+                ? (IOException) e.getCause() : new IOException(e.getCause());
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new IOException("Interrupted flushing the writer pool");
+          }
+        }
+        if (failure != null) {
+          throw failure;
+        }
+        return members.size();
+      } finally {
+        executor.shutdown();
+      }
+    }
+
+    /**
+     * Flush the writers that hold buffered records but wrote none for the
+     * given time, giving their memory back to the budget. A writer that is
+     * writing is flushed once that record is buffered.
+     *
+     * @param idleMs how long a writer must not have written
+     * @return number of writers flushed
+     */
+    public int flushIdle(final long idleMs) {
+      long now = System.currentTimeMillis();
+      int flushed = 0;
+      for (HBaseWriter writer : writers) {
+        if (writer.getPendingBytes() > 0
+            && now - writer.getLastWriteTime() >= idleMs) {
+          try {
+            writer.flushCommits();
+            flushed++;
+          } catch (IOException e) {
+            LOG.warn("Failed to flush an idle writer: " + e.getMessage());
+          }
+        }
+      }
+      return flushed;
+    }
+
+    /**
+     * Make the writers records are spread over by the key of their host
+     * instead of being borrowed from the pool. Consecutive records of a host
+     * then share a write buffer, and a flush sends them as one contiguous
+     * range of reversed hostname row keys, mostly within one region. Threads
+     * whose hosts share a stripe take turns on its writer.
+     *
+     * @param count number of stripes
+     * @throws IOException if a writer can't be made
+     */
+    public synchronized void createStripes(final int count) throws IOException {
+      HBaseWriter[] made = new HBaseWriter[count];
+      for (int i = 0; i < count; i++) {
+        made[i] = (HBaseWriter) makeWriter();
+        if (made[i] == null) {
+          throw new IOException("Failed to make the writer of stripe " + i);
+        }
+      }
+      this.stripes = made;
+    }
+
+    /**
+     * @param key the key of a host, e.g. the name of its queue
+     * @return the writer of the host's stripe, or null if striping is off
+     */
+    public HBaseWriter getStripe(final String key) {
+      HBaseWriter[] current = stripes;
+      if (current == null) {
+        return null;
+      }
+      return current[(key.hashCode() & Integer.MAX_VALUE) % current.length];
+    }
+
+    public int getStripeCount() {
+      HBaseWriter[] current = stripes;
+      return current == null ? 0 : current.length;
+    }
+
+    public Configuration getConfiguration() {
+      return conf;
+    }
+
+    public HBaseTableFactory getTableFactory() {
+      return tableFactory;
+    }
+
+    public DigestCache getDigestCache() {
+      return digestCache;
+    }
+
+    public DigestCache getChunkCache() {
+      return chunkCache;
+    }
+
+    public ChangeFeed getChangeFeed() {
+      return changeFeed;
+    }
+
+    /**
+     * Set the change feed every writer made from now on appends to.
+     */
+    public void setChangeFeed(ChangeFeed changeFeed) {
+      this.changeFeed = changeFeed;
+    }
+
+    public MemoryBudget getMemoryBudget() {
+      return memoryBudget;
+    }
+
+    /**
+     * Set the budget every writer made from now on reserves buffered
+     * records from. While it is set, idle writers and stripes are flushed
+     * as soon as a reservation waits, and otherwise once they wrote nothing
+     * for the budget's maximum wait.
+     */
+    public synchronized void setMemoryBudget(MemoryBudget memoryBudget) {
+      this.memoryBudget = memoryBudget;
+      if (memoryBudget != null && idleFlusher == null) {
+        idleFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "HBaseWriter idle flusher");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+        idleFlusher.scheduleWithFixedDelay(new Runnable() {
+          @Override
+          public void run() {
+            MemoryBudget budget = getMemoryBudget();
+            if (budget != null) {
+              flushIdle(budget.getWaitingCount() > 0 ? 0
+                  : Math.max(budget.getMaxWaitMs(), IDLE_FLUSH_INTERVAL_MS));
+            }
+          }
+        }, IDLE_FLUSH_INTERVAL_MS, IDLE_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    public AdmissionController getAdmissionController() {
+      return admissionController;
+    }
+
+    /**
+     * Set the controller every writer made from now on reports its call
+     * latencies to.
+     */
+    public void setAdmissionController(AdmissionController admissionController) {
+      this.admissionController = admissionController;
+    }
+
+    public CircuitBreaker getUrlBreaker() {
+      return urlBreaker;
+    }
+
+    public CircuitBreaker getContentBreaker() {
+      return contentBreaker;
+    }
+
+    public HedgedLookup getUrlLookup() {
+      return urlLookup;
+    }
+
+    @Override
+    public synchronized void close() {
+      if (idleFlusher != null) {
+        idleFlusher.shutdownNow();
+        idleFlusher = null;
+      }
+      super.close();
+      if (stripes != null) {
+        for (HBaseWriter stripe : stripes) {
+          try {
+            stripe.close();
+          } catch (IOException e) {
+            LOG.error("Failed to close a stripe writer: " + e.getMessage(), e);
+          }
+        }
+        stripes = null;
+      }
+      writers.clear();
+      if (urlLookup != null) {
+        urlLookup.close();
+      }
     }
 
     @Override
     protected WriterPoolMember makeWriter() {
       try {
-        return new HBaseWriter(this.conf, parameters);
+        HBaseWriter writer = new HBaseWriter(this.conf, parameters, tableFactory) {
+          @Override
+          public synchronized void close() throws IOException {
+            writers.remove(this);
+            super.close();
+          }
+        };
+        if (digestCache != null) {
+          writer.setDigestCache(digestCache);
+        }
+        if (chunkCache != null) {
+          writer.setChunkCache(chunkCache);
+        }
+        writer.setChangeFeed(changeFeed);
+        writer.setMemoryBudget(memoryBudget);
+        writer.setAdmissionController(admissionController);
+        writer.setCircuitBreakers(urlBreaker, contentBreaker);
+        writer.setUrlLookup(urlLookup);
+        writers.add(writer);
+        return writer;
       } catch (IOException e) {
+        LOG.error("Failed to make an HBase writer: " + e.getMessage(), e);
         return null;
       }
     }
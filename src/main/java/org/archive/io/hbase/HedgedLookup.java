@@ -0,0 +1,208 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+
+/**
+ * Existence lookups against one table that are duplicated when slow.
+ *
+ * Each lookup is sent right away; if it hasn't answered after the hedge
+ * delay a second, identical lookup is sent and whichever answers first
+ * wins. The hedge delay follows the observed 99th percentile lookup latency,
+ * but is never below the configured minimum, so only the tail gets hedged.
+ * A slow region server then costs the crawl one extra request instead of a
+ * ToeThread blocked for seconds.
+ *
+ * Lookups run on their own threads and table instances, borrowed from a
+ * shared queue, so an abandoned attempt can finish in the background
+ * without touching the write path of any writer.
+ */
+public class HedgedLookup {
+
+    /** lookups between recomputing the hedge delay */
+    private static final int DELAY_UPDATE_INTERVAL = 1000;
+    /** lookups after which older latencies are forgotten */
+    private static final int HISTOGRAM_WINDOW = 100000;
+
+    private final Configuration conf;
+    private final String tableName;
+    private final HBaseParameters parameters;
+    private final HBaseTableFactory tableFactory;
+    private final long minDelayMicros;
+    private final BlockingQueue<HTableInterface> tables =
+        new LinkedBlockingQueue<HTableInterface>();
+    private final ExecutorService executor;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private volatile long hedgeDelayMicros;
+    private final AtomicLong lookupCount = new AtomicLong();
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+
+    public HedgedLookup(final Configuration conf, final String tableName,
+        final HBaseParameters parameters, final HBaseTableFactory tableFactory) {
+      this.conf = conf;
+      this.tableName = tableName;
+      this.parameters = parameters;
+      this.tableFactory = tableFactory;
+      this.minDelayMicros = parameters.getHedgeMinDelayMs() * 1000;
+      this.hedgeDelayMicros = this.minDelayMicros;
+      final AtomicInteger threadCount = new AtomicInteger();
+      this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "HBaseWriter lookup " + tableName + " #"
+              + threadCount.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+
+    /**
+     * @see HTableInterface#exists(Get)
+     */
+    public boolean exists(final Get get) throws IOException {
+      CompletionService<Boolean> attempts =
+          new ExecutorCompletionService<Boolean>(executor);
+      Future<Boolean> primary = attempts.submit(newAttempt(get));
+      int outstanding = 1;
+      boolean hedged = false;
+      IOException failure = null;
+      try {
+        Future<Boolean> done = attempts.poll(hedgeDelayMicros,
+            TimeUnit.MICROSECONDS);
+        if (done == null) {
+          hedged = true;
+          hedgeCount.incrementAndGet();
+          attempts.submit(newAttempt(get));
+          outstanding++;
+        }
+        while (outstanding > 0) {
+          if (done == null) {
+            done = attempts.take();
+          }
+          outstanding--;
+          try {
+            boolean exists = done.get().booleanValue();
+            if (hedged && done != primary) {
+              hedgeWinCount.incrementAndGet();
+            }
+            return exists;
+          } catch (ExecutionException e) {
+            failure = e.getCause() instanceof IOException
+                ? (IOException) e.getCause() : new IOException(e.getCause());
+          }
+          done = null;
+        }
+        throw failure;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted looking up " + tableName);
+      } finally {
+        if (lookupCount.incrementAndGet() % DELAY_UPDATE_INTERVAL == 0) {
+          updateHedgeDelay();
+        }
+      }
+    }
+
+    private Callable<Boolean> newAttempt(final Get get) {
+      return new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws IOException {
+          HTableInterface table = tables.poll();
+          if (table == null) {
+            table = tableFactory.createTable(conf, tableName, parameters);
+          }
+          long start = System.nanoTime();
+          try {
+            boolean exists = table.exists(get);
+            latencies.add(System.nanoTime() - start);
+            return Boolean.valueOf(exists);
+          } finally {
+            tables.offer(table);
+          }
+        }
+      };
+    }
+
+    private void updateHedgeDelay() {
+      hedgeDelayMicros = Math.max(minDelayMicros,
+          latencies.getPercentileMicros(0.99));
+      if (latencies.getCount() >= HISTOGRAM_WINDOW) {
+        latencies.reset();
+      }
+    }
+
+    /**
+     * Stop the lookup threads and close the tables.
+     */
+    public void close() {
+      executor.shutdownNow();
+      HTableInterface table;
+      while ((table = tables.poll()) != null) {
+        try {
+          table.close();
+        } catch (IOException e) {
+          // nothing buffered, nothing lost
+        }
+      }
+    }
+
+    public long getHedgeDelayMs() {
+      return hedgeDelayMicros / 1000;
+    }
+
+    public long getLookupCount() {
+      return lookupCount.get();
+    }
+
+    /**
+     * @return number of lookups that were sent a second time
+     */
+    public long getHedgeCount() {
+      return hedgeCount.get();
+    }
+
+    /**
+     * @return number of hedged lookups answered by the second request first
+     */
+    public long getHedgeWinCount() {
+      return hedgeWinCount.get();
+    }
+}
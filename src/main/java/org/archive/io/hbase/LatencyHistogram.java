@@ -0,0 +1,126 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies in microseconds. Buckets split every
+ * power of two in four, so a percentile is reported within 25% of the
+ * actual value, from 1 microsecond up to about 2^40 microseconds.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int MAX_EXPONENT = 40;
+
+    private final AtomicLongArray counts =
+        new AtomicLongArray((MAX_EXPONENT + 1) * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Add an observation.
+     *
+     * @param latencyNanos the latency in nanoseconds
+     */
+    public void add(final long latencyNanos) {
+      long micros = Math.max(0, latencyNanos / 1000);
+      counts.incrementAndGet(bucketOf(micros));
+      count.incrementAndGet();
+      totalMicros.addAndGet(micros);
+      long max;
+      while (micros > (max = maxMicros.get())) {
+        if (maxMicros.compareAndSet(max, micros)) {
+          break;
+        }
+      }
+    }
+
+    /**
+     * @param fraction e.g. 0.99 for the 99th percentile
+     * @return upper bound in microseconds of the bucket holding the given
+     *         percentile, or 0 without observations
+     */
+    public long getPercentileMicros(final double fraction) {
+      long total = count.get();
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(fraction * total);
+      long seen = 0;
+      for (int i = 0; i < counts.length(); i++) {
+        seen += counts.get(i);
+        if (seen >= rank) {
+          return Math.min(upperBoundOf(i), maxMicros.get());
+        }
+      }
+      return maxMicros.get();
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getMaxMicros() {
+      return maxMicros.get();
+    }
+
+    public double getMeanMicros() {
+      long total = count.get();
+      return total == 0 ? 0 : (double) totalMicros.get() / total;
+    }
+
+    /**
+     * Forget all observations, e.g. to start a new measurement window.
+     * Observations made concurrently may be partially lost.
+     */
+    public void reset() {
+      for (int i = 0; i < counts.length(); i++) {
+        counts.set(i, 0);
+      }
+      count.set(0);
+      totalMicros.set(0);
+      maxMicros.set(0);
+    }
+
+    static int bucketOf(final long micros) {
+      if (micros < SUB_BUCKETS) {
+        return (int) micros;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(micros);
+      if (exponent > MAX_EXPONENT) {
+        return (MAX_EXPONENT + 1) * SUB_BUCKETS - 1;
+      }
+      int sub = (int) ((micros >> (exponent - 2)) & (SUB_BUCKETS - 1));
+      return exponent * SUB_BUCKETS + sub;
+    }
+
+    static long upperBoundOf(final int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int exponent = bucket / SUB_BUCKETS;
+      int sub = bucket % SUB_BUCKETS;
+      return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 2)) - 1;
+    }
+}
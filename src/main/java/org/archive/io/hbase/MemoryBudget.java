@@ -0,0 +1,165 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+/**
+ * A byte budget for the records held in memory by all writers of a crawl,
+ * from the copies taken out of the recorder until the client write buffer
+ * is flushed.
+ *
+ * A writer reserves the size of a record before materializing it and
+ * releases what it holds when it flushes. While the budget is exhausted
+ * reservations wait, which holds the ToeThread back while its record still
+ * sits in the recorder's backing file instead of on the heap. A reservation
+ * that waited longer than the maximum wait is granted anyway and reported
+ * as forced, so the writer can write it through immediately.
+ *
+ * Memory is only given back by flushes, so a writer about to wait first
+ * flushes what it holds itself, and the pool flushes idle writers while
+ * reservations wait.
+ */
+public class MemoryBudget {
+
+    private final long maxBytes;
+    private final long maxWaitMs;
+
+    private long usedBytes = 0;
+    private long peakBytes = 0;
+    private long waitCount = 0;
+    private long forcedCount = 0;
+    private int waitingCount = 0;
+
+    /**
+     * @param maxBytes the budget in bytes
+     * @param maxWaitMs how long a reservation may wait for memory
+     */
+    public MemoryBudget(final long maxBytes, final long maxWaitMs) {
+      this.maxBytes = maxBytes;
+      this.maxWaitMs = maxWaitMs;
+    }
+
+    /**
+     * Reserve memory for a record, waiting up to the maximum wait while the
+     * budget is exhausted. A record larger than the whole budget only waits
+     * for the budget to be empty.
+     *
+     * @param bytes the size of the record
+     * @return true if reserved within budget, false if the reservation was
+     *         forced after waiting the maximum time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean reserve(final long bytes)
+        throws InterruptedException {
+      long needed = Math.min(bytes, maxBytes);
+      boolean waited = false;
+      long deadline = System.currentTimeMillis() + maxWaitMs;
+      try {
+        while (usedBytes + needed > maxBytes) {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0) {
+            forcedCount++;
+            take(bytes);
+            return false;
+          }
+          if (!waited) {
+            waited = true;
+            waitCount++;
+            waitingCount++;
+          }
+          wait(remaining);
+        }
+      } finally {
+        if (waited) {
+          waitingCount--;
+        }
+      }
+      take(bytes);
+      return true;
+    }
+
+    /**
+     * Reserve memory for a record only if the budget has room for it now.
+     *
+     * @param bytes the size of the record
+     * @return true if reserved, false if the budget is exhausted
+     */
+    public synchronized boolean tryReserve(final long bytes) {
+      if (usedBytes + Math.min(bytes, maxBytes) > maxBytes) {
+        return false;
+      }
+      take(bytes);
+      return true;
+    }
+
+    /**
+     * Give back memory once the records it covered are flushed.
+     */
+    public synchronized void release(final long bytes) {
+      if (bytes <= 0) {
+        return;
+      }
+      usedBytes = Math.max(0, usedBytes - bytes);
+      notifyAll();
+    }
+
+    private void take(final long bytes) {
+      usedBytes += bytes;
+      if (usedBytes > peakBytes) {
+        peakBytes = usedBytes;
+      }
+    }
+
+    public long getMaxBytes() {
+      return maxBytes;
+    }
+
+    public long getMaxWaitMs() {
+      return maxWaitMs;
+    }
+
+    public synchronized long getUsedBytes() {
+      return usedBytes;
+    }
+
+    public synchronized long getPeakBytes() {
+      return peakBytes;
+    }
+
+    /**
+     * @return number of reservations that had to wait for memory
+     */
+    public synchronized long getWaitCount() {
+      return waitCount;
+    }
+
+    /**
+     * @return number of reservations waiting for memory right now
+     */
+    public synchronized int getWaitingCount() {
+      return waitingCount;
+    }
+
+    /**
+     * @return number of reservations granted over budget after waiting
+     */
+    public synchronized long getForcedCount() {
+      return forcedCount;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import org.archive.modules.CrawlURI;
+
+/**
+ * A secondary index of the url table on one attribute of the records.
+ *
+ * Index rows are keyed by the indexed value, a 0 byte and the url row key,
+ * so all urls with a value, or a range of values, are read with a short
+ * scan of the index instead of a full scan of the url table. Each row holds
+ * a single cell in the index column family whose value is the content hash
+ * of the record, empty if it had no content.
+ *
+ * Indexed values are:
+ * <ul>
+ * <li>HOST: the reversed host name, as at the start of the url row key</li>
+ * <li>MIME_TYPE: the content type without parameters, in lower case</li>
+ * <li>STATUS: the fetch status offset by 2^31 to be non-negative, in ten
+ * zero-padded decimal digits, so values sort in the order of the statuses,
+ * negative crawler statuses first; see {@link #encodeStatus(int)}</li>
+ * </ul>
+ *
+ * Rows are buffered here by the owning {@link HBaseWriter} and flushed with
+ * the url rows.
+ *
+ * The index is append-only: when a url is fetched again with another status
+ * or content type, the index row of its previous value is not deleted, since
+ * finding it would cost a read of the url row on every write. An index scan
+ * therefore may return urls whose record no longer has the value; readers
+ * check the url rows, e.g. with
+ * {@link HBaseReader#getCurrent(SecondaryIndex.Kind, List)}.
+ */
+public class SecondaryIndex {
+
+    /** the attribute indexed */
+    public enum Kind {
+      HOST, MIME_TYPE, STATUS
+    }
+
+    /** separates the indexed value from the url row key */
+    public static final byte SEPARATOR = 0;
+
+    private static final byte[] QUALIFIER = HConstants.EMPTY_BYTE_ARRAY;
+
+    private final Kind kind;
+    private final HTableInterface table;
+    private final byte[] family;
+    private final List<Put> pendingPuts = new ArrayList<Put>();
+
+    public SecondaryIndex(final Kind kind, final HTableInterface table,
+        final HBaseParameters parameters) {
+      this.kind = kind;
+      this.table = table;
+      this.family = Bytes.toBytes(parameters.getIndexColumnFamily());
+    }
+
+    public Kind getKind() {
+      return kind;
+    }
+
+    public HTableInterface getTable() {
+      return table;
+    }
+
+    /**
+     * @return index rows not flushed yet
+     */
+    public List<Put> getPendingPuts() {
+      return pendingPuts;
+    }
+
+    /**
+     * Buffer the index row of a record, if it has a value for this index.
+     *
+     * @param curi the record
+     * @param rowKey its url row key
+     * @param timestamp the timestamp of its url row cells
+     * @param hashKey its content hash, or null
+     */
+    public void add(final CrawlURI curi, final byte[] rowKey,
+        final long timestamp, final byte[] hashKey) {
+      byte[] value = getValue(kind, curi, rowKey);
+      if (value == null) {
+        return;
+      }
+      pendingPuts.add(new Put(createIndexKey(value, rowKey), timestamp).add(
+          family, QUALIFIER,
+          hashKey == null ? HConstants.EMPTY_BYTE_ARRAY : hashKey));
+    }
+
+    /**
+     * Buffer the index row of an unchanged revisit, if this index is on a
+     * value the revisit marker writes. That is only the status: the host of
+     * a url can't change, and the content type stays the one stored with the
+     * full record. Revisits are indexed whether or not their status differs
+     * from the stored one, as knowing would cost a read of the url row.
+     *
+     * @param curi the revisit
+     * @param rowKey its url row key
+     * @param timestamp the timestamp of its revisit marker cells
+     * @param hashKey the content hash of the full record it revisits
+     */
+    public void addRevisit(final CrawlURI curi, final byte[] rowKey,
+        final long timestamp, final byte[] hashKey) {
+      if (kind == Kind.STATUS) {
+        add(curi, rowKey, timestamp, hashKey);
+      }
+    }
+
+    /**
+     * @return the indexed value of a record, or null if it has none
+     */
+    static byte[] getValue(final Kind kind, final CrawlURI curi,
+        final byte[] rowKey) {
+      switch (kind) {
+      case HOST:
+        int end = 0;
+        while (end < rowKey.length && rowKey[end] != '/') {
+          end++;
+        }
+        return end == 0 ? null : Bytes.head(rowKey, end);
+      case MIME_TYPE:
+        return encodeMimeType(curi.getContentType());
+      case STATUS:
+        return encodeStatus(curi.getFetchStatus());
+      default:
+        throw new IllegalArgumentException("Unknown index " + kind);
+      }
+    }
+
+    /**
+     * @return the indexed value of a stored record, or null if it has none
+     */
+    static byte[] getValue(final Kind kind, final HBaseRecord record) {
+      switch (kind) {
+      case HOST:
+        return getValue(kind, null, record.getRowKey());
+      case MIME_TYPE:
+        return encodeMimeType(record.getMimeType());
+      case STATUS:
+        return encodeStatus(record.getStatus());
+      default:
+        throw new IllegalArgumentException("Unknown index " + kind);
+      }
+    }
+
+    private static byte[] encodeMimeType(String contentType) {
+      if (contentType == null) {
+        return null;
+      }
+      int parameters = contentType.indexOf(';');
+      if (parameters >= 0) {
+        contentType = contentType.substring(0, parameters);
+      }
+      contentType = contentType.trim().toLowerCase();
+      return contentType.length() == 0 ? null : Bytes.toBytes(contentType);
+    }
+
+    /**
+     * Encode a fetch status so encoded statuses sort as the statuses do: the
+     * status plus 2^31 in ten zero-padded decimal digits. Plain decimal
+     * doesn't, e.g. "50" sorts between "500" and "404", and negative
+     * statuses sort by their digits after the '-'.
+     *
+     * @return the index value of a status
+     */
+    public static byte[] encodeStatus(final int status) {
+      return Bytes.toBytes(String.format("%010d",
+          (long) status - Integer.MIN_VALUE));
+    }
+
+    /**
+     * @return the status an index value encodes
+     */
+    public static int decodeStatus(final byte[] value) {
+      return (int) (Long.parseLong(Bytes.toString(value)) + Integer.MIN_VALUE);
+    }
+
+    /**
+     * @return whether an index row still describes the record of the url
+     *         row it points to, i.e. the url wasn't fetched again since with
+     *         another value
+     */
+    public static boolean isCurrent(final Kind kind, final byte[] indexKey,
+        final HBaseRecord record) {
+      if (record == null) {
+        return false;
+      }
+      byte[] value = getValue(kind, record);
+      return value != null && Bytes.equals(value,
+          Bytes.head(indexKey, indexKey.length
+              - record.getRowKey().length - 1));
+    }
+
+    /**
+     * @return the index row key of a value and url row key
+     */
+    public static byte[] createIndexKey(final byte[] value, final byte[] rowKey) {
+      byte[] key = new byte[value.length + 1 + rowKey.length];
+      System.arraycopy(value, 0, key, 0, value.length);
+      key[value.length] = SEPARATOR;
+      System.arraycopy(rowKey, 0, key, value.length + 1, rowKey.length);
+      return key;
+    }
+
+    /**
+     * @return the url row key an index row points to
+     */
+    public static byte[] getUrlRowKey(final byte[] indexKey) {
+      for (int i = 0; i < indexKey.length; i++) {
+        if (indexKey[i] == SEPARATOR) {
+          return Bytes.tail(indexKey, indexKey.length - i - 1);
+        }
+      }
+      throw new IllegalArgumentException("Not an index row key: "
+          + Bytes.toStringBinary(indexKey));
+    }
+
+    /**
+     * Create a scan of the index rows of one value, e.g. "application/pdf".
+     */
+    public static Scan createValueScan(final String value) {
+      byte[] start = createIndexKey(Bytes.toBytes(value),
+          HConstants.EMPTY_BYTE_ARRAY);
+      byte[] stop = start.clone();
+      stop[stop.length - 1] = SEPARATOR + 1;
+      return createScan(start, stop);
+    }
+
+    /**
+     * Create a scan of the index rows of values in [fromValue, toValue),
+     * e.g. "application/" to "application0" for all application types.
+     */
+    public static Scan createRangeScan(final String fromValue,
+        final String toValue) {
+      return createScan(Bytes.toBytes(fromValue), Bytes.toBytes(toValue));
+    }
+
+    /**
+     * Create a scan of the status index rows of statuses in
+     * [fromStatus, toStatus), e.g. 500 to 600 for all server errors.
+     */
+    public static Scan createStatusRangeScan(final int fromStatus,
+        final int toStatus) {
+      return createScan(encodeStatus(fromStatus), encodeStatus(toStatus));
+    }
+
+    private static Scan createScan(final byte[] start, final byte[] stop) {
+      Scan scan = new Scan(start, stop);
+      scan.setCaching(HBaseScans.DEFAULT_CACHING);
+      scan.setCacheBlocks(false);
+      return scan;
+    }
+}
@@ -0,0 +1,620 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.apache.log4j.Logger;
+
+import org.archive.io.warc.WARCConstants;
+import org.archive.io.warc.WARCConstants.WARCRecordType;
+import org.archive.io.warc.WARCRecordInfo;
+import org.archive.io.warc.WARCWriter;
+import org.archive.io.warc.WARCWriterPoolSettings;
+import org.archive.uid.RecordIDGenerator;
+import org.archive.uid.UUIDGenerator;
+import org.archive.util.ArchiveUtils;
+import org.archive.util.Base32;
+import org.archive.util.anvl.ANVLRecord;
+
+/**
+ * Exports url rows and their content to WARC files, without MapReduce.
+ *
+ * The url table is split at its region boundaries and the splits are
+ * scanned in parallel, each by its own {@link HBaseReader} writing its own
+ * WARC files. Rows are read in batches; the content of a batch is fetched
+ * in one multi-get and cached across the export, since popular content is
+ * shared by many urls. Each record with content becomes a response record,
+ * followed by its request record if one was stored, and each unchanged
+ * revisit a revisit record of the identical payload digest profile. Every
+ * capture of a row written in the time range is exported, not only the
+ * latest, so the full capture a later revisit refers to is exported along
+ * with it. Captures without content, e.g. those written with a metadata
+ * scope, are counted as skipped.
+ *
+ * Exports can be restricted to a range of hosts and to cells written in a
+ * time range, which selects fetch times when the writer used
+ * {@link HBaseParameters#isUseFetchTimestamp()}.
+ *
+ * <pre>
+ * WarcExporter [-z zkQuorum] [-p zkClientPort] [-o outputDir] [-t threads]
+ *     [-h fromHost,toHost] [-r minTime,maxTime] [-x prefix]
+ * </pre>
+ */
+public class WarcExporter {
+
+    private static final Logger LOG = Logger.getLogger(WarcExporter.class.getName());
+
+    /** default url rows per scanner round trip and content multi-get */
+    public static final int DEFAULT_BATCH_SIZE = 200;
+
+    /** default bytes of content cached across the export */
+    public static final long DEFAULT_CACHE_BYTES = 64 * 1024 * 1024;
+
+    private final Configuration conf;
+    private final HBaseParameters parameters;
+    private final HBaseTableFactory tableFactory;
+
+    private File outputDir = new File(".");
+    private String prefix = "HBASE-EXPORT";
+    private long maxFileSizeBytes = 1000L * 1000L * 1000L;
+    private boolean compress = true;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private byte[] fromHost = null;
+    private byte[] toHost = null;
+    private long minTime = 0;
+    private long maxTime = Long.MAX_VALUE;
+    private List<byte[]> splitKeys = null;
+
+    private final RecordIDGenerator recordIds = new UUIDGenerator();
+    private final AtomicInteger serialNo = new AtomicInteger();
+    private final AtomicLong responseCount = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong revisitCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong contentBytes = new AtomicLong();
+    private ContentCache contentCache = new ContentCache(DEFAULT_CACHE_BYTES,
+        DEFAULT_CACHE_BYTES / 64);
+
+    public WarcExporter(final Configuration conf,
+        final HBaseParameters parameters) {
+      this(conf, parameters, new DefaultTableFactory());
+    }
+
+    public WarcExporter(final Configuration conf,
+        final HBaseParameters parameters, final HBaseTableFactory tableFactory) {
+      this.conf = conf;
+      this.parameters = parameters;
+      this.tableFactory = tableFactory;
+    }
+
+    public void setOutputDir(File outputDir) {
+      this.outputDir = outputDir;
+    }
+
+    public void setPrefix(String prefix) {
+      this.prefix = prefix;
+    }
+
+    public void setMaxFileSizeBytes(long maxFileSizeBytes) {
+      this.maxFileSizeBytes = maxFileSizeBytes;
+    }
+
+    public void setCompress(boolean compress) {
+      this.compress = compress;
+    }
+
+    public void setThreads(int threads) {
+      this.threads = Math.max(1, threads);
+    }
+
+    public void setBatchSize(int batchSize) {
+      this.batchSize = Math.max(1, batchSize);
+    }
+
+    public void setContentCache(ContentCache contentCache) {
+      this.contentCache = contentCache;
+    }
+
+    /**
+     * Only export hosts from fromHost to toHost, both included, in the order
+     * of their reversed names, i.e. the url row key order. Subdomains of
+     * toHost are included too. Either may be null for an open range.
+     *
+     * @param fromHost e.g. "example.com"
+     * @param toHost e.g. "example.com"
+     */
+    public void setHostRange(String fromHost, String toHost) {
+      this.fromHost = fromHost == null ? null
+          : hostOf(HBaseWriter.createURLKey("http://" + fromHost));
+      this.toHost = toHost == null ? null
+          : hostOf(HBaseWriter.createURLKey("http://" + toHost));
+    }
+
+    /**
+     * Only export cells written in [minTime, maxTime).
+     */
+    public void setTimeRange(long minTime, long maxTime) {
+      this.minTime = minTime;
+      this.maxTime = maxTime;
+    }
+
+    /**
+     * Split at these row keys instead of the region boundaries, e.g. for a
+     * table that isn't an HTable.
+     */
+    public void setSplitKeys(List<byte[]> splitKeys) {
+      this.splitKeys = splitKeys;
+    }
+
+    public long getResponseCount() {
+      return responseCount.get();
+    }
+
+    public long getRequestCount() {
+      return requestCount.get();
+    }
+
+    public long getRevisitCount() {
+      return revisitCount.get();
+    }
+
+    /**
+     * @return captures not exported because their content couldn't be found
+     */
+    public long getSkippedCount() {
+      return skippedCount.get();
+    }
+
+    public long getContentBytes() {
+      return contentBytes.get();
+    }
+
+    /**
+     * @return number of WARC files written
+     */
+    public int getFileCount() {
+      return serialNo.get();
+    }
+
+    /**
+     * Run the export and wait for all splits to finish.
+     *
+     * @return number of response records written
+     * @throws IOException if any split failed
+     */
+    public long export() throws IOException {
+      outputDir.mkdirs();
+      List<byte[][]> splits = getSplits();
+      LOG.info("Exporting " + parameters.getUrlTableName() + " in "
+          + splits.size() + " splits with " + threads + " threads");
+      ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads,
+          splits.size()));
+      try {
+        List<Future<Void>> results = new ArrayList<Future<Void>>(splits.size());
+        for (final byte[][] split : splits) {
+          results.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+              exportSplit(split[0], split[1]);
+              return null;
+            }
+          }));
+        }
+        for (Future<Void> result : results) {
+          try {
+            result.get();
+          } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+              throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for export");
+          }
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+      return responseCount.get();
+    }
+
+    /**
+     * @return [start, stop) row key pairs covering the host range, one per
+     *         region or split key interval it overlaps
+     */
+    List<byte[][]> getSplits() throws IOException {
+      List<byte[]> boundaries = new ArrayList<byte[]>();
+      if (splitKeys != null) {
+        boundaries.addAll(splitKeys);
+        Collections.sort(boundaries, Bytes.BYTES_COMPARATOR);
+      } else {
+        HTableInterface table = tableFactory.createTable(conf,
+            parameters.getUrlTableName(), parameters);
+        try {
+          if (table instanceof HTable) {
+            Pair<byte[][], byte[][]> keys = ((HTable) table).getStartEndKeys();
+            for (byte[] start : keys.getFirst()) {
+              if (start.length > 0) {
+                boundaries.add(start);
+              }
+            }
+          }
+        } finally {
+          table.close();
+        }
+      }
+      byte[] start = fromHost == null ? HConstants.EMPTY_START_ROW : fromHost;
+      byte[] stop = HConstants.EMPTY_END_ROW;
+      if (toHost != null) {
+        // past every key of toHost and its subdomains, filtered exactly in the scan
+        stop = Bytes.add(toHost, new byte[] { (byte) 0xFF });
+      }
+      List<byte[][]> splits = new ArrayList<byte[][]>();
+      byte[] splitStart = start;
+      for (byte[] boundary : boundaries) {
+        if (Bytes.compareTo(boundary, splitStart) <= 0) {
+          continue;
+        }
+        if (stop.length > 0 && Bytes.compareTo(boundary, stop) >= 0) {
+          break;
+        }
+        splits.add(new byte[][] { splitStart, boundary });
+        splitStart = boundary;
+      }
+      splits.add(new byte[][] { splitStart, stop });
+      return splits;
+    }
+
+    private void exportSplit(final byte[] start, final byte[] stop)
+        throws IOException {
+      HBaseReader reader = new HBaseReader(conf, parameters, tableFactory);
+      reader.setContentCache(contentCache);
+      WARCWriter writer = new WARCWriter(serialNo, new ExportSettings());
+      ResultScanner scanner = null;
+      try {
+        Scan scan = HBaseScans.createTimeRangeScan(parameters, minTime, maxTime);
+        // every capture in the range, not only the latest of each row
+        scan.setMaxVersions();
+        scan.setStartRow(start);
+        scan.setStopRow(stop);
+        scan.setCaching(batchSize);
+        scanner = reader.getUrlScanner(scan);
+        List<HBaseRecord> records = new ArrayList<HBaseRecord>(batchSize);
+        List<byte[]> hashKeys = new ArrayList<byte[]>(batchSize);
+        List<HBaseRecord> revisits = new ArrayList<HBaseRecord>();
+        List<HBaseRecord> revisited = new ArrayList<HBaseRecord>();
+        for (Result[] batch = scanner.next(batchSize); batch.length > 0;
+            batch = scanner.next(batchSize)) {
+          records.clear();
+          hashKeys.clear();
+          revisits.clear();
+          revisited.clear();
+          for (Result result : batch) {
+            if (result.isEmpty() || !isInHostRange(result.getRow())) {
+              continue;
+            }
+            // the last full capture in the range, for the revisits after it
+            HBaseRecord capture = null;
+            for (Result version : splitVersions(result)) {
+              HBaseRecord record = HBaseRecord.fromResult(version, parameters);
+              if (record.isRevisit()) {
+                revisits.add(record);
+                revisited.add(capture);
+              } else if (record.getHashKey() == null) {
+                // written without content
+                skippedCount.incrementAndGet();
+              } else {
+                records.add(record);
+                hashKeys.add(record.getHashKey());
+                capture = record;
+              }
+            }
+          }
+          if (!records.isEmpty()) {
+            List<byte[]> contents = reader.getContents(hashKeys);
+            for (int i = 0; i < records.size(); i++) {
+              write(writer, records.get(i), contents.get(i));
+            }
+          }
+          for (int i = 0; i < revisits.size(); i++) {
+            writeRevisit(writer, reader, revisits.get(i), revisited.get(i));
+          }
+        }
+      } finally {
+        if (scanner != null) {
+          scanner.close();
+        }
+        writer.close();
+        reader.close();
+      }
+    }
+
+    /**
+     * Split a row read with all its versions into one result per write,
+     * oldest first. The writer puts all cells of a fetch at once, so they
+     * share a timestamp, and a revisit's cells are apart from those of the
+     * full capture it refers to.
+     */
+    static List<Result> splitVersions(final Result result) {
+      TreeMap<Long, List<KeyValue>> writes = new TreeMap<Long, List<KeyValue>>();
+      // raw() is sorted, and so stays every write's share of it
+      for (KeyValue kv : result.raw()) {
+        List<KeyValue> cells = writes.get(kv.getTimestamp());
+        if (cells == null) {
+          cells = new ArrayList<KeyValue>();
+          writes.put(kv.getTimestamp(), cells);
+        }
+        cells.add(kv);
+      }
+      List<Result> versions = new ArrayList<Result>(writes.size());
+      for (List<KeyValue> cells : writes.values()) {
+        versions.add(new Result(cells));
+      }
+      return versions;
+    }
+
+    private boolean isInHostRange(final byte[] rowKey) {
+      if (toHost == null) {
+        return true;
+      }
+      byte[] host = hostOf(rowKey);
+      if (Bytes.compareTo(host, toHost) <= 0) {
+        return true;
+      }
+      // a subdomain of toHost
+      return host.length > toHost.length && host[toHost.length] == '.'
+          && Bytes.startsWith(host, toHost);
+    }
+
+    /**
+     * @return the reversed host name at the start of a url row key
+     */
+    static byte[] hostOf(final byte[] rowKey) {
+      int end = 0;
+      while (end < rowKey.length && rowKey[end] != '/' && rowKey[end] != ':') {
+        end++;
+      }
+      return Bytes.head(rowKey, end);
+    }
+
+    private void write(final WARCWriter writer, final HBaseRecord record,
+        final byte[] content) throws IOException {
+      if (content == null || record.getUrl() == null) {
+        skippedCount.incrementAndGet();
+        return;
+      }
+      writer.checkSize();
+      long time = record.getFetchTime() > 0 ? record.getFetchTime()
+          : record.getTimestamp();
+      String timestamp = ArchiveUtils.get14DigitDate(time);
+      byte[] headers = record.getResponseHeaders() == null
+          ? new byte[0] : record.getResponseHeaders();
+      URI responseId = recordIds.getRecordID();
+      ANVLRecord responseHeaders = new ANVLRecord();
+      if (record.getIp() != null) {
+        responseHeaders.addLabelValue(WARCConstants.HEADER_KEY_IP, record.getIp());
+      }
+      responseHeaders.addLabelValue(WARCConstants.HEADER_KEY_PAYLOAD_DIGEST,
+          "sha1:" + Base32.encode(record.getHashKey()));
+      WARCRecordInfo response = new WARCRecordInfo();
+      response.setType(WARCRecordType.response);
+      response.setUrl(record.getUrl());
+      response.setCreate14DigitDate(timestamp);
+      response.setMimetype(WARCConstants.HTTP_RESPONSE_MIMETYPE);
+      response.setRecordId(responseId);
+      response.setExtraHeaders(responseHeaders);
+      response.setContentStream(new SequenceInputStream(
+          new ByteArrayInputStream(headers), new ByteArrayInputStream(content)));
+      response.setContentLength(headers.length + content.length);
+      response.setEnforceLength(true);
+      writer.writeRecord(response);
+      responseCount.incrementAndGet();
+      contentBytes.addAndGet(content.length);
+
+      if (record.getRequest() != null) {
+        ANVLRecord requestHeaders = new ANVLRecord();
+        requestHeaders.addLabelValue(WARCConstants.HEADER_KEY_CONCURRENT_TO,
+            "<" + responseId + ">");
+        WARCRecordInfo request = new WARCRecordInfo();
+        request.setType(WARCRecordType.request);
+        request.setUrl(record.getUrl());
+        request.setCreate14DigitDate(timestamp);
+        request.setMimetype(WARCConstants.HTTP_REQUEST_MIMETYPE);
+        request.setRecordId(recordIds.getRecordID());
+        request.setExtraHeaders(requestHeaders);
+        request.setContentStream(new ByteArrayInputStream(record.getRequest()));
+        request.setContentLength(record.getRequest().length);
+        request.setEnforceLength(true);
+        writer.writeRecord(request);
+        requestCount.incrementAndGet();
+      }
+    }
+
+    /**
+     * Write a revisit as a revisit record of the identical payload digest
+     * profile, dated at the revisit. The revisit only holds its time and
+     * status; its hash and url are those of the full capture before it in
+     * the time range, or else of the latest full capture, looked up outside
+     * the time range of the scan.
+     */
+    private void writeRevisit(final WARCWriter writer, final HBaseReader reader,
+        final HBaseRecord record, final HBaseRecord capture) throws IOException {
+      byte[] hashKey = record.getHashKey();
+      String url = record.getUrl();
+      if ((hashKey == null || url == null) && capture != null) {
+        hashKey = capture.getHashKey();
+        url = capture.getUrl();
+      }
+      if (hashKey == null || url == null) {
+        HBaseRecord latest = reader.getByRowKey(record.getRowKey());
+        if (latest != null) {
+          hashKey = latest.getHashKey();
+          url = latest.getUrl();
+        }
+      }
+      if (hashKey == null || url == null) {
+        skippedCount.incrementAndGet();
+        return;
+      }
+      writer.checkSize();
+      ANVLRecord headers = new ANVLRecord();
+      headers.addLabelValue(WARCConstants.HEADER_KEY_PROFILE,
+          WARCConstants.PROFILE_REVISIT_IDENTICAL_DIGEST);
+      headers.addLabelValue(WARCConstants.HEADER_KEY_PAYLOAD_DIGEST,
+          "sha1:" + Base32.encode(hashKey));
+      WARCRecordInfo revisit = new WARCRecordInfo();
+      revisit.setType(WARCRecordType.revisit);
+      revisit.setUrl(url);
+      revisit.setCreate14DigitDate(ArchiveUtils.get14DigitDate(
+          record.getRevisitTime()));
+      revisit.setRecordId(recordIds.getRecordID());
+      revisit.setExtraHeaders(headers);
+      revisit.setContentStream(new ByteArrayInputStream(new byte[0]));
+      revisit.setContentLength(0);
+      revisit.setEnforceLength(true);
+      writer.writeRecord(revisit);
+      revisitCount.incrementAndGet();
+    }
+
+    /**
+     * WARC file settings of the export.
+     */
+    private class ExportSettings implements WARCWriterPoolSettings {
+      @Override
+      public long getMaxFileSizeBytes() {
+        return maxFileSizeBytes;
+      }
+
+      @Override
+      public String getPrefix() {
+        return prefix;
+      }
+
+      @Override
+      public String getTemplate() {
+        return "${prefix}-${timestamp17}-${serialno}";
+      }
+
+      @Override
+      public List<File> calcOutputDirs() {
+        return Collections.singletonList(outputDir);
+      }
+
+      @Override
+      public boolean getCompress() {
+        return compress;
+      }
+
+      @Override
+      public List<String> getMetadata() {
+        return null;
+      }
+
+      @Override
+      public boolean getFrequentFlushes() {
+        return false;
+      }
+
+      @Override
+      public int getWriteBufferSize() {
+        return 256 * 1024;
+      }
+
+      @Override
+      public RecordIDGenerator getRecordIDGenerator() {
+        return recordIds;
+      }
+    }
+
+    public static void main(String[] args) throws Exception {
+      Configuration conf = HBaseConfiguration.create();
+      WarcExporter exporter = new WarcExporter(conf, new HBaseParameters());
+      for (int i = 0; i < args.length; i += 2) {
+        if (i + 1 == args.length) {
+          usage("Missing the value of option " + args[i]);
+        }
+        String value = args[i + 1];
+        if (args[i].equals("-z")) {
+          conf.setStrings(HConstants.ZOOKEEPER_QUORUM, value.split(","));
+        } else if (args[i].equals("-p")) {
+          conf.setInt(HBaseParameters.ZOOKEEPER_CLIENT_PORT, Integer.parseInt(value));
+        } else if (args[i].equals("-o")) {
+          exporter.setOutputDir(new File(value));
+        } else if (args[i].equals("-t")) {
+          exporter.setThreads(Integer.parseInt(value));
+        } else if (args[i].equals("-h")) {
+          String[] hosts = value.split(",", -1);
+          exporter.setHostRange(hosts[0].length() == 0 ? null : hosts[0],
+              hosts.length < 2 || hosts[1].length() == 0 ? null : hosts[1]);
+        } else if (args[i].equals("-r")) {
+          String[] times = value.split(",");
+          exporter.setTimeRange(Long.parseLong(times[0]), times.length > 1
+              ? Long.parseLong(times[1]) : Long.MAX_VALUE);
+        } else if (args[i].equals("-x")) {
+          exporter.setPrefix(value);
+        } else {
+          usage("Unknown option " + args[i]);
+        }
+      }
+      exporter.export();
+      System.out.println(exporter.getResponseCount() + " responses, "
+          + exporter.getRequestCount() + " requests, "
+          + exporter.getRevisitCount() + " revisits, "
+          + exporter.getSkippedCount() + " skipped, "
+          + exporter.getFileCount() + " files");
+    }
+
+    private static void usage(String message) {
+      System.err.println(message);
+      System.err.println("Usage: WarcExporter [-z zkQuorum] [-p zkClientPort]"
+          + " [-o outputDir] [-t threads] [-h fromHost,toHost]"
+          + " [-r minTime,maxTime] [-x prefix]");
+      System.exit(1);
+    }
+}
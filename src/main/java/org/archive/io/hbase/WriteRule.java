@@ -0,0 +1,259 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.httpclient.URIException;
+
+import org.archive.modules.CrawlURI;
+
+/**
+ * A rule choosing the {@link WriteScope} of the records it matches. A rule
+ * matches a record when all of its conditions that are set do; rules are
+ * tried in order and the first match wins.
+ *
+ * Meant to be configured within the Spring framework, in the writeRules list
+ * of HBaseWriterProcessor:
+ *
+ * <pre>
+ * {@code
+ * <bean class="org.archive.io.hbase.WriteRule">
+ *   <property name="statuses" value="400-499" />
+ *   <property name="scope" value="HEADERS" />
+ * </bean>
+ * <bean class="org.archive.io.hbase.WriteRule">
+ *   <property name="contentTypeRegex" value="(image|video)/.*" />
+ *   <property name="minContentSize" value="1048576" />
+ *   <property name="scope" value="METADATA" />
+ * </bean>
+ * }
+ * </pre>
+ *
+ * The conditions are compiled once with {@link #compile()}, so evaluating
+ * a rule costs a few comparisons and at most two regex matches.
+ */
+public class WriteRule {
+
+    private String statuses = null;
+    private String contentTypeRegex = null;
+    private String hostRegex = null;
+    private String sourceTag = null;
+    private long minContentSize = -1;
+    private long maxContentSize = -1;
+    private WriteScope scope = WriteScope.ALL;
+
+    /** inclusive status ranges, as pairs */
+    private int[] statusRanges = null;
+    private Pattern contentTypePattern = null;
+    private Pattern hostPattern = null;
+    private volatile boolean compiled = false;
+
+    public String getStatuses() {
+      return statuses;
+    }
+
+    /**
+     * @param statuses fetch statuses and ranges of them, e.g. "404" or
+     *          "301,400-499"
+     */
+    public void setStatuses(String statuses) {
+      this.statuses = statuses;
+      this.compiled = false;
+    }
+
+    public String getContentTypeRegex() {
+      return contentTypeRegex;
+    }
+
+    /**
+     * @param contentTypeRegex matched against the whole content type, in
+     *          lower case and without parameters
+     */
+    public void setContentTypeRegex(String contentTypeRegex) {
+      this.contentTypeRegex = contentTypeRegex;
+      this.compiled = false;
+    }
+
+    public String getHostRegex() {
+      return hostRegex;
+    }
+
+    /**
+     * @param hostRegex matched against the whole host name, e.g.
+     *          "(.*\.)?example\.com"
+     */
+    public void setHostRegex(String hostRegex) {
+      this.hostRegex = hostRegex;
+      this.compiled = false;
+    }
+
+    public String getSourceTag() {
+      return sourceTag;
+    }
+
+    public void setSourceTag(String sourceTag) {
+      this.sourceTag = sourceTag;
+    }
+
+    public long getMinContentSize() {
+      return minContentSize;
+    }
+
+    /**
+     * @param minContentSize smallest content length matched, without the
+     *          response headers, -1 for no minimum
+     */
+    public void setMinContentSize(long minContentSize) {
+      this.minContentSize = minContentSize;
+    }
+
+    public long getMaxContentSize() {
+      return maxContentSize;
+    }
+
+    /**
+     * @param maxContentSize largest content length matched, without the
+     *          response headers, -1 for no maximum
+     */
+    public void setMaxContentSize(long maxContentSize) {
+      this.maxContentSize = maxContentSize;
+    }
+
+    public WriteScope getScope() {
+      return scope;
+    }
+
+    public void setScope(WriteScope scope) {
+      this.scope = scope;
+    }
+
+    /**
+     * Parse the status ranges and compile the patterns.
+     *
+     * @throws IllegalArgumentException if a condition is malformed
+     */
+    public synchronized void compile() {
+      statusRanges = parseStatuses(statuses);
+      contentTypePattern = contentTypeRegex == null ? null
+          : Pattern.compile(contentTypeRegex);
+      hostPattern = hostRegex == null ? null : Pattern.compile(hostRegex);
+      compiled = true;
+    }
+
+    static int[] parseStatuses(final String statuses) {
+      if (statuses == null || statuses.trim().length() == 0) {
+        return null;
+      }
+      String[] parts = statuses.split(",");
+      int[] ranges = new int[2 * parts.length];
+      for (int i = 0; i < parts.length; i++) {
+        String part = parts[i].trim();
+        // a leading minus is a negative crawler status, not a range
+        int dash = part.indexOf('-', 1);
+        try {
+          if (dash < 0) {
+            ranges[2 * i] = ranges[2 * i + 1] = Integer.parseInt(part);
+          } else {
+            ranges[2 * i] = Integer.parseInt(part.substring(0, dash).trim());
+            ranges[2 * i + 1] = Integer.parseInt(part.substring(dash + 1).trim());
+          }
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Bad status range '" + part
+              + "' in " + statuses);
+        }
+      }
+      return ranges;
+    }
+
+    /**
+     * @return true if all the conditions set match the record
+     */
+    public boolean matches(final CrawlURI curi) {
+      if (!compiled) {
+        compile();
+      }
+      if (statusRanges != null && !matchesStatus(curi.getFetchStatus())) {
+        return false;
+      }
+      // the content the scope would leave out, not the whole recording
+      if (minContentSize >= 0 && curi.getContentLength() < minContentSize) {
+        return false;
+      }
+      if (maxContentSize >= 0 && curi.getContentLength() > maxContentSize) {
+        return false;
+      }
+      if (sourceTag != null && !sourceTag.equals(curi.getSourceTag())) {
+        return false;
+      }
+      if (contentTypePattern != null) {
+        String contentType = curi.getContentType();
+        if (contentType == null) {
+          return false;
+        }
+        int parameters = contentType.indexOf(';');
+        if (parameters >= 0) {
+          contentType = contentType.substring(0, parameters);
+        }
+        if (!contentTypePattern.matcher(contentType.trim().toLowerCase())
+            .matches()) {
+          return false;
+        }
+      }
+      if (hostPattern != null) {
+        String host;
+        try {
+          host = curi.getUURI().getReferencedHost();
+        } catch (URIException e) {
+          return false;
+        }
+        if (host == null || !hostPattern.matcher(host).matches()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private boolean matchesStatus(final int status) {
+      for (int i = 0; i < statusRanges.length; i += 2) {
+        if (status >= statusRanges[i] && status <= statusRanges[i + 1]) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * @return the scope of the first rule matching the record, ALL if none
+     *         does
+     */
+    public static WriteScope getScope(final List<WriteRule> rules,
+        final CrawlURI curi) {
+      if (rules != null) {
+        for (WriteRule rule : rules) {
+          if (rule.matches(curi)) {
+            return rule.getScope();
+          }
+        }
+      }
+      return WriteScope.ALL;
+    }
+}
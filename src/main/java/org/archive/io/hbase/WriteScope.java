@@ -0,0 +1,43 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.io.hbase;
+
+/**
+ * How much of a record {@link HBaseWriter} writes.
+ */
+public enum WriteScope {
+
+    /** the url row metadata only: status, fetch time, url, ip, via, mime type... */
+    METADATA,
+
+    /** metadata plus the request and the response headers */
+    HEADERS,
+
+    /** everything, including the content */
+    ALL;
+
+    public boolean includesHeaders() {
+      return this != METADATA;
+    }
+
+    public boolean includesContent() {
+      return this == ALL;
+    }
+}
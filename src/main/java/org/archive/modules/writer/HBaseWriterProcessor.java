@@ -1,25 +1,41 @@
 package org.archive.modules.writer;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.hadoop.hbase.client.Get;
-import org.apache.hadoop.hbase.client.HTable;
+import org.apache.commons.httpclient.URIException;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.log4j.Logger;
+import org.archive.checkpointing.Checkpoint;
 import org.archive.modules.writer.WriterPoolProcessor;
 import org.archive.io.ReplayInputStream;
 import org.archive.io.WriterPoolMember;
+import org.archive.io.hbase.AdmissionController;
+import org.archive.io.hbase.ChangeFeed;
+import org.archive.io.hbase.CircuitBreaker;
+import org.archive.io.hbase.CircuitOpenException;
+import org.archive.io.hbase.DefaultTableFactory;
+import org.archive.io.hbase.DigestCache;
 import org.archive.io.hbase.HBaseParameters;
+import org.archive.io.hbase.HBaseTableFactory;
 import org.archive.io.hbase.HBaseWriter;
 import org.archive.io.hbase.HBaseWriterPool;
+import org.archive.io.hbase.MemoryBudget;
+import org.archive.io.hbase.WriteRule;
+import org.archive.io.hbase.WriteScope;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.ProcessResult;
 import org.archive.spring.ConfigPath;
 import org.archive.util.ArchiveUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
 
 /**
  * A <a href="http://crawler.archive.org">Heritrix 3</a> processor that writes
@@ -75,6 +91,49 @@ public class HBaseWriterProcessor extends WriterPoolProcessor {
    */
   HBaseParameters hbaseParameters = null;
 
+  /**
+   * Where the writers get their tables from. Default is null, which opens
+   * real HBase tables.
+   *
+   * @see org.archive.io.hbase.HBaseTableFactory
+   */
+  private HBaseTableFactory tableFactory = null;
+
+  /**
+   * If set to true, setupPool checks that every table the writers use
+   * exists with the column families they need, and fails the crawl start
+   * otherwise instead of every writer failing later. Default is true.
+   */
+  private boolean validateTables = true;
+
+  /**
+   * If set to true, setupPool puts the locations of all regions of the
+   * tables in the connection's region cache, so the first writes of the
+   * crawl don't each look them up in META. The tables are validated along
+   * the way. Default is true.
+   */
+  private boolean prefetchRegionLocations = true;
+
+  /**
+   * If set to true, setupPool makes all poolMaxActive writers in parallel
+   * up front. Default is false, which makes them as ToeThreads first need
+   * them.
+   */
+  private boolean warmPool = false;
+
+  /**
+   * Number of writers records are striped over by host queue, instead of
+   * borrowing whichever writer of the pool is idle. Consecutive records of
+   * a host then share a write buffer, and each flush sends them as one
+   * contiguous range of reversed hostname row keys, mostly within one
+   * region. ToeThreads whose queues share a stripe take turns on its
+   * writer, so use at least as many stripes as ToeThreads. Default is 0,
+   * which borrows from the pool.
+   *
+   * @see org.archive.io.hbase.HBaseWriterPool#createStripes(int)
+   */
+  private int hostStripes = 0;
+
   /**
    * If set to true, then only process urls that are new rowkey records. Default
    * is false, which will process all urls to the HBase table. In this mode,
@@ -83,6 +142,84 @@ public class HBaseWriterProcessor extends WriterPoolProcessor {
    */
   private boolean onlyProcessNewRecords = false;
 
+  /**
+   * What onlyProcessNewRecords decides when the existence lookup fails or
+   * the url table circuit breaker is open. Default is false, which treats
+   * the url as already existing and skips it; true processes it as new.
+   */
+  private boolean newRecordOnLookupFailure = false;
+
+  /**
+   * Directory of the change feed, an append-only log of the url row keys and
+   * content hashes written, for incremental downstream processing. Default is
+   * null, which disables the feed.
+   *
+   * @see org.archive.io.hbase.ChangeFeed
+   */
+  private ConfigPath changeFeedPath = null;
+  private long changeFeedSegmentBytes = 64 * 1024 * 1024;
+  private long changeFeedRollIntervalMs = 10 * 60 * 1000;
+  private int changeFeedQueueSize = 100000;
+
+  /**
+   * How long a flush waits for room in a full change feed queue before it
+   * fails, in milliseconds. Rows lost to the feed are marked on its next
+   * segment, see {@link ChangeFeed#INCOMPLETE_SUFFIX}.
+   */
+  private long changeFeedMaxWaitMs = ChangeFeed.DEFAULT_MAX_WAIT_MS;
+
+  private ChangeFeed changeFeed = null;
+
+  /**
+   * Bytes of records all writers may hold in memory between taking them out
+   * of the recorder and flushing them to HBase. Writers that would exceed it
+   * wait up to maxBufferWaitMs for other writers to flush, which slows the
+   * ToeThreads down instead of running out of heap. While the budget is
+   * enabled, writers idle for a while are also flushed in the background,
+   * so their records don't hold the budget. Default is 0, which disables
+   * both; a quarter of the maximum heap, e.g. 536870912 with -Xmx2g, is a
+   * reasonable setting for crawls whose records are large.
+   *
+   * @see org.archive.io.hbase.MemoryBudget
+   */
+  private long maxBufferedBytes = 0;
+  private long maxBufferWaitMs = 60 * 1000;
+
+  private MemoryBudget memoryBudget = null;
+
+  /**
+   * If set to true, the number of records written at once adapts to the
+   * latency and failures of HBase calls: it grows while calls stay under
+   * targetWriteLatencyMs and halves when they don't. ToeThreads over the
+   * limit wait for their turn instead of exhausting the writer pool, so a
+   * slow cluster slows the crawl down rather than failing writes. Default is
+   * false.
+   *
+   * @see org.archive.io.hbase.AdmissionController
+   */
+  private boolean adaptiveAdmission = false;
+  private long targetWriteLatencyMs = 500;
+  private int minWritesInFlight = 1;
+
+  private AdmissionController admissionController = null;
+
+  /**
+   * Rules choosing how much of a record is written: metadata only, metadata
+   * and headers, or everything. The first rule matching a record decides;
+   * records no rule matches are written whole. Parts left out aren't read
+   * from the recorder, hashed or sent to HBase. Default is no rules.
+   *
+   * @see org.archive.io.hbase.WriteRule
+   */
+  private List<WriteRule> writeRules = new ArrayList<WriteRule>();
+
+  /** names of the checkpoint files the shared caches are saved to */
+  private static final String DIGEST_CACHE_FILE = "digestCache";
+  private static final String CHUNK_CACHE_FILE = "chunkCache";
+
+  /** checkpoint the crawl is resumed from, if any */
+  private Checkpoint resumeCheckpoint = null;
+
   /** Getters and setters **/
 
   public String getZkQuorum() {
@@ -114,6 +251,46 @@ public class HBaseWriterProcessor extends WriterPoolProcessor {
     this.hbaseParameters = options;
   }
 
+  public HBaseTableFactory getTableFactory() {
+    return tableFactory;
+  }
+
+  public void setTableFactory(HBaseTableFactory tableFactory) {
+    this.tableFactory = tableFactory;
+  }
+
+  public boolean isValidateTables() {
+    return validateTables;
+  }
+
+  public void setValidateTables(boolean validateTables) {
+    this.validateTables = validateTables;
+  }
+
+  public boolean isPrefetchRegionLocations() {
+    return prefetchRegionLocations;
+  }
+
+  public void setPrefetchRegionLocations(boolean prefetchRegionLocations) {
+    this.prefetchRegionLocations = prefetchRegionLocations;
+  }
+
+  public boolean isWarmPool() {
+    return warmPool;
+  }
+
+  public void setWarmPool(boolean warmPool) {
+    this.warmPool = warmPool;
+  }
+
+  public int getHostStripes() {
+    return hostStripes;
+  }
+
+  public void setHostStripes(int hostStripes) {
+    this.hostStripes = hostStripes;
+  }
+
   public boolean onlyProcessNewRecords() {
     return onlyProcessNewRecords;
   }
@@ -122,6 +299,129 @@ public class HBaseWriterProcessor extends WriterPoolProcessor {
     this.onlyProcessNewRecords = onlyProcessNewRecords;
   }
 
+  public boolean isNewRecordOnLookupFailure() {
+    return newRecordOnLookupFailure;
+  }
+
+  public void setNewRecordOnLookupFailure(boolean newRecordOnLookupFailure) {
+    this.newRecordOnLookupFailure = newRecordOnLookupFailure;
+  }
+
+  public ConfigPath getChangeFeedPath() {
+    return changeFeedPath;
+  }
+
+  public void setChangeFeedPath(ConfigPath changeFeedPath) {
+    this.changeFeedPath = changeFeedPath;
+  }
+
+  public long getChangeFeedSegmentBytes() {
+    return changeFeedSegmentBytes;
+  }
+
+  public void setChangeFeedSegmentBytes(long changeFeedSegmentBytes) {
+    this.changeFeedSegmentBytes = changeFeedSegmentBytes;
+  }
+
+  public long getChangeFeedRollIntervalMs() {
+    return changeFeedRollIntervalMs;
+  }
+
+  public void setChangeFeedRollIntervalMs(long changeFeedRollIntervalMs) {
+    this.changeFeedRollIntervalMs = changeFeedRollIntervalMs;
+  }
+
+  public int getChangeFeedQueueSize() {
+    return changeFeedQueueSize;
+  }
+
+  public void setChangeFeedQueueSize(int changeFeedQueueSize) {
+    this.changeFeedQueueSize = changeFeedQueueSize;
+  }
+
+  public long getChangeFeedMaxWaitMs() {
+    return changeFeedMaxWaitMs;
+  }
+
+  public void setChangeFeedMaxWaitMs(long changeFeedMaxWaitMs) {
+    this.changeFeedMaxWaitMs = changeFeedMaxWaitMs;
+  }
+
+  public ChangeFeed getChangeFeed() {
+    return changeFeed;
+  }
+
+  public long getMaxBufferedBytes() {
+    return maxBufferedBytes;
+  }
+
+  public void setMaxBufferedBytes(long maxBufferedBytes) {
+    this.maxBufferedBytes = maxBufferedBytes;
+  }
+
+  public long getMaxBufferWaitMs() {
+    return maxBufferWaitMs;
+  }
+
+  public void setMaxBufferWaitMs(long maxBufferWaitMs) {
+    this.maxBufferWaitMs = maxBufferWaitMs;
+  }
+
+  public boolean isAdaptiveAdmission() {
+    return adaptiveAdmission;
+  }
+
+  public void setAdaptiveAdmission(boolean adaptiveAdmission) {
+    this.adaptiveAdmission = adaptiveAdmission;
+  }
+
+  public long getTargetWriteLatencyMs() {
+    return targetWriteLatencyMs;
+  }
+
+  public void setTargetWriteLatencyMs(long targetWriteLatencyMs) {
+    this.targetWriteLatencyMs = targetWriteLatencyMs;
+  }
+
+  public int getMinWritesInFlight() {
+    return minWritesInFlight;
+  }
+
+  public void setMinWritesInFlight(int minWritesInFlight) {
+    this.minWritesInFlight = minWritesInFlight;
+  }
+
+  public List<WriteRule> getWriteRules() {
+    return writeRules;
+  }
+
+  public void setWriteRules(List<WriteRule> writeRules) {
+    this.writeRules = writeRules;
+  }
+
+  /**
+   * @return number of writes currently admitted at once, or the pool size if
+   *         adaptive admission is off
+   */
+  public int getWriteLimit() {
+    return admissionController == null ? getPoolMaxActive()
+        : admissionController.getLimit();
+  }
+
+  /**
+   * @return bytes of records currently buffered by all writers
+   */
+  public long getBufferedBytes() {
+    return memoryBudget == null ? 0 : memoryBudget.getUsedBytes();
+  }
+
+  /**
+   * @return highest number of bytes buffered by all writers at once
+   */
+  public long getPeakBufferedBytes() {
+    return memoryBudget == null ? 0 : memoryBudget.getPeakBytes();
+  }
+
   /** End of Getters and Setters **/
 
   @Override
@@ -141,8 +441,262 @@ public class HBaseWriterProcessor extends WriterPoolProcessor {
 
   @Override
   protected void setupPool(AtomicInteger serial) {
-    setPool(new HBaseWriterPool(serial, getZkQuorum(), getZkClientPort(),
-        getHbaseParameters(), getPoolMaxActive(), getMaxWaitForIdleMs()));
+    // fail at startup rather than on the first record a bad rule is tried on
+    for (WriteRule rule : getWriteRules()) {
+      rule.compile();
+    }
+    HBaseWriterPool pool = new HBaseWriterPool(serial, getZkQuorum(),
+        getZkClientPort(), getHbaseParameters(), getPoolMaxActive(),
+        getMaxWaitForIdleMs(), getTableFactory() == null
+            ? new DefaultTableFactory() : getTableFactory());
+    if (getHbaseParameters().isCreateTables()) {
+      try {
+        pool.createTables();
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to create the HBase tables", e);
+      }
+    }
+    if (isValidateTables() || isPrefetchRegionLocations()) {
+      try {
+        long start = System.currentTimeMillis();
+        int regions = pool.validateTables(isPrefetchRegionLocations());
+        LOG.info("Validated HBase tables and cached " + regions
+            + " region locations in " + (System.currentTimeMillis() - start)
+            + " ms");
+      } catch (IOException e) {
+        throw new IllegalStateException("HBase tables are missing or "
+            + "misconfigured: " + e.getMessage(), e);
+      }
+    }
+    // the feed outlives the pool when the processor is restarted
+    if (changeFeed == null && getChangeFeedPath() != null) {
+      try {
+        changeFeed = new ChangeFeed(getChangeFeedPath().getFile(),
+            getChangeFeedSegmentBytes(), getChangeFeedRollIntervalMs(),
+            getChangeFeedQueueSize(), getChangeFeedMaxWaitMs());
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to open the change feed", e);
+      }
+    }
+    pool.setChangeFeed(changeFeed);
+    if (memoryBudget == null && getMaxBufferedBytes() > 0) {
+      memoryBudget = new MemoryBudget(getMaxBufferedBytes(), getMaxBufferWaitMs());
+    }
+    pool.setMemoryBudget(memoryBudget);
+    if (admissionController == null && isAdaptiveAdmission()) {
+      admissionController = new AdmissionController(getMinWritesInFlight(),
+          getPoolMaxActive(), getTargetWriteLatencyMs(),
+          getHbaseParameters().getWriteBufferSize());
+    }
+    pool.setAdmissionController(admissionController);
+    if (getHostStripes() > 0) {
+      try {
+        pool.createStripes(getHostStripes());
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to make the HBase writers", e);
+      }
+    }
+    // so the resumed crawl recognizes revisits and stored chunks right away
+    if (resumeCheckpoint != null) {
+      loadCache(resumeCheckpoint, DIGEST_CACHE_FILE, pool.getDigestCache());
+      loadCache(resumeCheckpoint, CHUNK_CACHE_FILE, pool.getChunkCache());
+      resumeCheckpoint = null;
+    }
+    if (isWarmPool()) {
+      try {
+        pool.warm(getPoolMaxActive());
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to make the HBase writers", e);
+      }
+    }
+    setPool(pool);
+  }
+
+  /**
+   * Flush every writer of the pool in parallel and save the byte counters
+   * and shared caches, instead of closing the pool and making it anew: the
+   * checkpoint has everything written so far in HBase, and the crawl goes
+   * on with open tables and warm caches.
+   */
+  @Override
+  public void doCheckpoint(Checkpoint checkpointInProgress) throws IOException {
+    long start = System.currentTimeMillis();
+    HBaseWriterPool pool = (HBaseWriterPool) getPool();
+    int writers = pool.flushAll();
+    saveCache(checkpointInProgress, DIGEST_CACHE_FILE, pool.getDigestCache());
+    saveCache(checkpointInProgress, CHUNK_CACHE_FILE, pool.getChunkCache());
+    try {
+      checkpointInProgress.saveJson(getBeanName(), toCheckpointJson());
+    } catch (JSONException e) {
+      throw new IOException("Failed to save the checkpoint of "
+          + getBeanName(), e);
+    }
+    LOG.info("Flushed " + writers + " HBase writers for checkpoint in "
+        + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  private void saveCache(Checkpoint checkpoint, String name, DigestCache cache)
+      throws IOException {
+    if (cache == null) {
+      return;
+    }
+    BufferedWriter out = checkpoint.saveWriter(getBeanName(), name);
+    try {
+      cache.save(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  @Override
+  protected JSONObject toCheckpointJson() throws JSONException {
+    JSONObject json = super.toCheckpointJson();
+    json.put("totalBytesWritten", getTotalBytesWritten());
+    if (changeFeed != null) {
+      json.put("changeFeedAppended", changeFeed.getAppendedCount());
+      json.put("changeFeedLastSegment", changeFeed.getLastSegmentName());
+    }
+    return json;
+  }
+
+  @Override
+  @Autowired(required = false)
+  public void setRecoveryCheckpoint(Checkpoint checkpoint) {
+    super.setRecoveryCheckpoint(checkpoint);
+    this.resumeCheckpoint = checkpoint;
+  }
+
+  /**
+   * Restore the byte counters. The shared caches are restored by setupPool,
+   * which runs after this, once there is a pool to restore them into.
+   */
+  @Override
+  protected void fromCheckpointJson(JSONObject json) throws JSONException {
+    super.fromCheckpointJson(json);
+    if (json.has("totalBytesWritten")) {
+      setTotalBytesWritten(json.getLong("totalBytesWritten"));
+    }
+    if (json.has("changeFeedLastSegment")) {
+      LOG.info("Change feed was at segment "
+          + json.getString("changeFeedLastSegment") + " at the checkpoint");
+    }
+  }
+
+  private void loadCache(Checkpoint checkpoint, String name, DigestCache cache) {
+    if (cache == null) {
+      return;
+    }
+    try {
+      BufferedReader in = checkpoint.loadReader(getBeanName(), name);
+      try {
+        LOG.info("Restored " + cache.load(in) + " " + name + " entries");
+      } finally {
+        in.close();
+      }
+    } catch (FileNotFoundException e) {
+      // checkpointed with the cache disabled, it fills up as the crawl goes
+      LOG.info("No " + name + " in the checkpoint");
+    } catch (IOException e) {
+      LOG.warn("Failed to restore the " + name + ", starting it empty", e);
+      cache.clear();
+    }
+  }
+
+  @Override
+  public void stop() {
+    super.stop();
+    if (changeFeed != null) {
+      changeFeed.close();
+      changeFeed = null;
+    }
+  }
+
+  @Override
+  public String report() {
+    StringBuilder report = new StringBuilder(super.report());
+    if (memoryBudget != null) {
+      report.append("  Buffered bytes:    ").append(memoryBudget.getUsedBytes())
+          .append(" (peak ").append(memoryBudget.getPeakBytes())
+          .append(", budget ").append(memoryBudget.getMaxBytes()).append(")\n");
+      report.append("  Buffer waits:      ").append(memoryBudget.getWaitCount())
+          .append(" (forced ").append(memoryBudget.getForcedCount())
+          .append(")\n");
+    }
+    if (admissionController != null) {
+      report.append("  Write limit:       ").append(admissionController.getLimit())
+          .append(" of ").append(admissionController.getMaxInFlight())
+          .append(" (").append(admissionController.getInFlight())
+          .append(" in flight, ").append(admissionController.getWaitCount())
+          .append(" waits)\n");
+      report.append("  Write latency ms:  flush ")
+          .append(admissionController.getAverageLatencyMs(
+              AdmissionController.Operation.FLUSH))
+          .append(", checkAndPut ")
+          .append(admissionController.getAverageLatencyMs(
+              AdmissionController.Operation.CHECK_AND_PUT))
+          .append(", get ")
+          .append(admissionController.getAverageLatencyMs(
+              AdmissionController.Operation.GET))
+          .append(" (").append(admissionController.getSlowCount())
+          .append(" slow, ").append(admissionController.getFailureCount())
+          .append(" failed)\n");
+    }
+    if (getPool() instanceof HBaseWriterPool) {
+      HBaseWriterPool pool = (HBaseWriterPool) getPool();
+      if (pool.getStripeCount() > 0) {
+        report.append("  Host stripes:      ").append(pool.getStripeCount())
+            .append("\n");
+      }
+      appendBreaker(report, pool.getUrlBreaker());
+      appendBreaker(report, pool.getContentBreaker());
+      if (pool.getUrlLookup() != null) {
+        report.append("  Hedged lookups:    ")
+            .append(pool.getUrlLookup().getHedgeCount()).append(" of ")
+            .append(pool.getUrlLookup().getLookupCount()).append(" (")
+            .append(pool.getUrlLookup().getHedgeWinCount())
+            .append(" won, delay ").append(pool.getUrlLookup().getHedgeDelayMs())
+            .append(" ms)\n");
+      }
+    }
+    if (changeFeed != null) {
+      report.append("  Change feed:       ").append(changeFeed.getAppendedCount())
+          .append(" appended, ").append(changeFeed.getDroppedCount())
+          .append(" dropped")
+          .append(changeFeed.isIncomplete() ? ", incomplete\n" : "\n");
+    }
+    return report.toString();
+  }
+
+  private static void appendBreaker(StringBuilder report,
+      CircuitBreaker breaker) {
+    if (breaker != null) {
+      report.append("  Breaker ").append(breaker.getName()).append(": ")
+          .append(breaker.getState()).append(" (")
+          .append(breaker.getTripCount()).append(" trips, ")
+          .append(breaker.getRejectedCount()).append(" rejected)\n");
+    }
+  }
+
+  /**
+   * @return state of the url table circuit breaker, or null if disabled
+   */
+  public String getUrlBreakerState() {
+    if (getPool() instanceof HBaseWriterPool) {
+      CircuitBreaker breaker = ((HBaseWriterPool) getPool()).getUrlBreaker();
+      return breaker == null ? null : breaker.getState().toString();
+    }
+    return null;
+  }
+
+  /**
+   * @return state of the content table circuit breaker, or null if disabled
+   */
+  public String getContentBreakerState() {
+    if (getPool() instanceof HBaseWriterPool) {
+      CircuitBreaker breaker = ((HBaseWriterPool) getPool()).getContentBreaker();
+      return breaker == null ? null : breaker.getState().toString();
+    }
+    return null;
   }
 
   @Override
@@ -219,6 +773,23 @@ public class HBaseWriterProcessor extends WriterPoolProcessor {
     return true;
   }
 
+  /**
+   * How much of the given CrawlURI to write, according to the write rules.
+   * Annotates the CrawlURI when not everything is written.
+   * 
+   * @param curi
+   *          CrawlURI
+   * 
+   * @return the scope of the first matching rule, ALL if none matches
+   */
+  protected WriteScope getWriteScope(CrawlURI curi) {
+    WriteScope scope = WriteRule.getScope(getWriteRules(), curi);
+    if (scope != WriteScope.ALL) {
+      curi.getAnnotations().add("hbaseScope:" + scope.toString().toLowerCase());
+    }
+    return scope;
+  }
+
   /**
    * Determine if the given uri exists as a rowkey in the configured hbase
    * table.
@@ -240,10 +811,9 @@ public class HBaseWriterProcessor extends WriterPoolProcessor {
     String url = curi.toString();
     byte[] rowKey = HBaseWriter.createURLKey(url);
     try {
-      HTable urlTable = ((HBaseWriter) writerPoolMember).getUrlTable();
       // Here we can generate the rowkey for this uri ...
       // and look it up to see if it already exists...
-      if (urlTable.exists(new Get(rowKey))) {
+      if (((HBaseWriter) writerPoolMember).exists(rowKey)) {
         if (LOG.isDebugEnabled()) {
           LOG.debug("Not A NEW Record - Url: " + url
               + " has the existing rowkey: " + Bytes.toStringBinary(rowKey) +
@@ -251,12 +821,16 @@ public class HBaseWriterProcessor extends WriterPoolProcessor {
         }
         return false;
       }
+    } catch (CircuitOpenException e) {
+      // the url table is known to be in trouble, don't log every lookup
+      return isNewRecordOnLookupFailure();
     } catch (IOException e) {
       LOG.error("Failed to determine if record: "
           + Bytes.toStringBinary(rowKey)
-          + " is a new record due to IOExecption.  Deciding the record is already existing for now. \n"
-          + e.getMessage());
-      return false;
+          + " is a new record due to IOExecption.  Deciding the record is "
+          + (isNewRecordOnLookupFailure() ? "new" : "already existing")
+          + " for now. \n" + e.getMessage());
+      return isNewRecordOnLookupFailure();
     } finally {
       try {
         getPool().returnFile(writerPoolMember);
@@ -269,6 +843,34 @@ public class HBaseWriterProcessor extends WriterPoolProcessor {
     return true;
   }
 
+  /**
+   * The writer of the host stripe of the given CrawlURI, keyed by its queue
+   * so the records a ToeThread takes from one queue share a writer.
+   * 
+   * @param curi
+   *          CrawlURI
+   * 
+   * @return the stripe writer, or null if striping is off
+   */
+  protected HBaseWriter getStripe(CrawlURI curi) {
+    if (!(getPool() instanceof HBaseWriterPool)) {
+      return null;
+    }
+    HBaseWriterPool pool = (HBaseWriterPool) getPool();
+    if (pool.getStripeCount() == 0) {
+      return null;
+    }
+    String key = curi.getClassKey();
+    if (key == null) {
+      try {
+        key = curi.getUURI().getReferencedHost();
+      } catch (URIException e) {
+        key = null;
+      }
+    }
+    return pool.getStripe(key == null ? curi.toString() : key);
+  }
+
   /**
    * Write to HBase.
    * 
@@ -286,16 +888,47 @@ public class HBaseWriterProcessor extends WriterPoolProcessor {
    */
   protected ProcessResult write(final CrawlURI curi, long recordLength,
       InputStream in) throws IOException {
-    WriterPoolMember writerPoolMember = getPool().borrowFile();
-    long writerPoolMemberPosition = writerPoolMember.getPosition();
-    HBaseWriter hbaseWriter = (HBaseWriter) writerPoolMember;
+    if (admissionController != null) {
+      try {
+        admissionController.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted waiting to write " + curi);
+      }
+    }
     try {
-      hbaseWriter.write(curi, getHostAddress(curi), curi.getRecorder()
-          .getRecordedOutput(), curi.getRecorder().getRecordedInput());
+      HBaseWriter stripe = getStripe(curi);
+      if (stripe != null) {
+        // other ToeThreads share the stripe, so hold it for the position
+        synchronized (stripe) {
+          long stripePosition = stripe.getPosition();
+          try {
+            stripe.write(curi, getHostAddress(curi), curi.getRecorder()
+                .getRecordedOutput(), curi.getRecorder().getRecordedInput(),
+                getWriteScope(curi));
+          } finally {
+            setTotalBytesWritten(getTotalBytesWritten()
+                + (stripe.getPosition() - stripePosition));
+          }
+        }
+        return checkBytesWritten();
+      }
+      WriterPoolMember writerPoolMember = getPool().borrowFile();
+      long writerPoolMemberPosition = writerPoolMember.getPosition();
+      HBaseWriter hbaseWriter = (HBaseWriter) writerPoolMember;
+      try {
+        hbaseWriter.write(curi, getHostAddress(curi), curi.getRecorder()
+            .getRecordedOutput(), curi.getRecorder().getRecordedInput(),
+            getWriteScope(curi));
+      } finally {
+        setTotalBytesWritten(getTotalBytesWritten()
+            + (writerPoolMember.getPosition() - writerPoolMemberPosition));
+        getPool().returnFile(writerPoolMember);
+      }
     } finally {
-      setTotalBytesWritten(getTotalBytesWritten()
-          + (writerPoolMember.getPosition() - writerPoolMemberPosition));
-      getPool().returnFile(writerPoolMember);
+      if (admissionController != null) {
+        admissionController.release();
+      }
     }
     return checkBytesWritten();
   }
@@ -0,0 +1,415 @@
+package org.archive.io.hbase;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.io.TimeRange;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * An in-memory stand-in for an HBase table, for tests and load generation
+ * without a cluster.
+ *
+ * Clients are dynamic proxies of {@link HTableInterface} sharing the rows of
+ * the table. They support put, checkAndPut, checkAndDelete of columns and
+ * families, exists, get, multi-get and scans by row range, family and time
+ * range; writes are applied right away
+ * and flushCommits does nothing. Other calls, and scan filters, are not
+ * supported.
+ *
+ * The descriptor of the table has any column family asked for, unless its
+ * families are set, e.g. to try a table missing one.
+ *
+ * Every call can be given a latency and a failure rate, by method name or
+ * for all calls with "*".
+ */
+public class InMemoryTable implements InvocationHandler {
+
+	/**
+	 * Latency and failure injected into calls.
+	 */
+	public static class Profile {
+		final long latencyMs;
+		final long jitterMs;
+		final double failureRate;
+
+		/**
+		 * @param latencyMs fixed latency of each call
+		 * @param jitterMs up to this much random latency on top
+		 * @param failureRate fraction of calls failing with an IOException
+		 */
+		public Profile(long latencyMs, long jitterMs, double failureRate) {
+			this.latencyMs = latencyMs;
+			this.jitterMs = jitterMs;
+			this.failureRate = failureRate;
+		}
+	}
+
+	/** family -> qualifier -> timestamp, newest first -> value */
+	private static class Row extends TreeMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> {
+		private static final long serialVersionUID = 1L;
+
+		Row() {
+			super(Bytes.BYTES_COMPARATOR);
+		}
+	}
+
+	private final String name;
+	private final ConcurrentSkipListMap<byte[], Row> rows =
+			new ConcurrentSkipListMap<byte[], Row>(Bytes.BYTES_COMPARATOR);
+	private final Map<String, Profile> profiles = new ConcurrentHashMap<String, Profile>();
+	private final Map<String, AtomicLong> callCounts = new ConcurrentHashMap<String, AtomicLong>();
+	private final Random random = new Random();
+	private volatile Set<String> families = null;
+
+	public InMemoryTable(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return a new client of this table
+	 */
+	public HTableInterface newClient() {
+		return (HTableInterface) Proxy.newProxyInstance(
+				HTableInterface.class.getClassLoader(),
+				new Class<?>[] { HTableInterface.class }, this);
+	}
+
+	/**
+	 * Inject latency and failures into calls of the given method, or all
+	 * calls for "*". A null profile removes the injection.
+	 */
+	public void setProfile(String method, Profile profile) {
+		if (profile == null) {
+			profiles.remove(method);
+		} else {
+			profiles.put(method, profile);
+		}
+	}
+
+	/**
+	 * Restrict the families the descriptor of the table has; null for any.
+	 */
+	public void setFamilies(String... families) {
+		this.families = families == null ? null
+				: new HashSet<String>(Arrays.asList(families));
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getRowCount() {
+		return rows.size();
+	}
+
+	public NavigableSet<byte[]> getRowKeys() {
+		return rows.keySet();
+	}
+
+	/**
+	 * @return number of calls made to the given method
+	 */
+	public long getCallCount(String method) {
+		AtomicLong count = callCounts.get(method);
+		return count == null ? 0 : count.get();
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String op = method.getName();
+		if (op.equals("toString")) {
+			return "InMemoryTable(" + name + ")";
+		} else if (op.equals("hashCode")) {
+			return Integer.valueOf(System.identityHashCode(proxy));
+		} else if (op.equals("equals")) {
+			return Boolean.valueOf(proxy == args[0]);
+		}
+		count(op);
+		simulate(op);
+		if (op.equals("put")) {
+			if (args[0] instanceof Put) {
+				put((Put) args[0]);
+			} else {
+				for (Object put : (List<?>) args[0]) {
+					put((Put) put);
+				}
+			}
+			return null;
+		} else if (op.equals("checkAndPut")) {
+			return Boolean.valueOf(checkAndPut((byte[]) args[0], (byte[]) args[1],
+					(byte[]) args[2], (byte[]) args[3], (Put) args[4]));
+		} else if (op.equals("checkAndDelete")) {
+			return Boolean.valueOf(checkAndDelete((byte[]) args[0], (byte[]) args[1],
+					(byte[]) args[2], (byte[]) args[3], (Delete) args[4]));
+		} else if (op.equals("exists")) {
+			return Boolean.valueOf(!get((Get) args[0]).isEmpty());
+		} else if (op.equals("get")) {
+			if (args[0] instanceof Get) {
+				return get((Get) args[0]);
+			}
+			List<?> gets = (List<?>) args[0];
+			Result[] results = new Result[gets.size()];
+			for (int i = 0; i < results.length; i++) {
+				results[i] = get((Get) gets.get(i));
+			}
+			return results;
+		} else if (op.equals("getScanner") && args[0] instanceof Scan) {
+			return scan((Scan) args[0]);
+		} else if (op.equals("flushCommits") || op.equals("close")) {
+			return null;
+		} else if (op.equals("isAutoFlush")) {
+			return Boolean.FALSE;
+		} else if (op.equals("getTableName")) {
+			return Bytes.toBytes(name);
+		} else if (op.equals("getConfiguration")) {
+			return null;
+		} else if (op.equals("getTableDescriptor")) {
+			return new HTableDescriptor(name) {
+				// families are made as they are written to
+				@Override
+				public boolean hasFamily(byte[] family) {
+					Set<String> current = families;
+					return current == null || current.contains(Bytes.toString(family));
+				}
+			};
+		}
+		throw new UnsupportedOperationException("InMemoryTable does not support " + op);
+	}
+
+	private void count(String op) {
+		AtomicLong count = callCounts.get(op);
+		if (count == null) {
+			synchronized (callCounts) {
+				count = callCounts.get(op);
+				if (count == null) {
+					count = new AtomicLong();
+					callCounts.put(op, count);
+				}
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	private void simulate(String op) throws IOException {
+		Profile profile = profiles.get(op);
+		if (profile == null) {
+			profile = profiles.get("*");
+		}
+		if (profile == null) {
+			return;
+		}
+		long latency = profile.latencyMs;
+		if (profile.jitterMs > 0) {
+			latency += (long) (random.nextDouble() * profile.jitterMs);
+		}
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted in " + op);
+			}
+		}
+		if (profile.failureRate > 0 && random.nextDouble() < profile.failureRate) {
+			throw new IOException("Injected failure of " + op + " on " + name);
+		}
+	}
+
+	private void put(Put put) {
+		long now = System.currentTimeMillis();
+		Row row = getOrCreateRow(put.getRow());
+		synchronized (row) {
+			for (List<KeyValue> kvs : put.getFamilyMap().values()) {
+				for (KeyValue kv : kvs) {
+					long ts = kv.getTimestamp() == HConstants.LATEST_TIMESTAMP ? now
+							: kv.getTimestamp();
+					NavigableMap<byte[], NavigableMap<Long, byte[]>> family = row.get(kv.getFamily());
+					if (family == null) {
+						family = new TreeMap<byte[], NavigableMap<Long, byte[]>>(Bytes.BYTES_COMPARATOR);
+						row.put(kv.getFamily(), family);
+					}
+					NavigableMap<Long, byte[]> versions = family.get(kv.getQualifier());
+					if (versions == null) {
+						versions = new TreeMap<Long, byte[]>().descendingMap();
+						family.put(kv.getQualifier(), versions);
+					}
+					versions.put(Long.valueOf(ts), kv.getValue());
+				}
+			}
+		}
+	}
+
+	private boolean checkAndPut(byte[] rowKey, byte[] family,
+			byte[] qualifier, byte[] expected, Put put) {
+		Row row = getOrCreateRow(rowKey);
+		synchronized (row) {
+			boolean matches = matches(row, family, qualifier, expected);
+			if (matches) {
+				put(put);
+			}
+			return matches;
+		}
+	}
+
+	private boolean checkAndDelete(byte[] rowKey, byte[] family,
+			byte[] qualifier, byte[] expected, Delete delete) {
+		Row row = getOrCreateRow(rowKey);
+		synchronized (row) {
+			boolean matches = matches(row, family, qualifier, expected);
+			if (matches) {
+				for (List<KeyValue> kvs : delete.getFamilyMap().values()) {
+					for (KeyValue kv : kvs) {
+						NavigableMap<byte[], NavigableMap<Long, byte[]>> columns = row.get(kv.getFamily());
+						if (columns == null) {
+							continue;
+						}
+						if (kv.isDeleteFamily()) {
+							row.remove(kv.getFamily());
+						} else {
+							columns.remove(kv.getQualifier());
+						}
+					}
+				}
+			}
+			return matches;
+		}
+	}
+
+	private static boolean matches(Row row, byte[] family, byte[] qualifier,
+			byte[] expected) {
+		byte[] current = null;
+		NavigableMap<byte[], NavigableMap<Long, byte[]>> columns = row.get(family);
+		if (columns != null && columns.get(qualifier) != null
+				&& !columns.get(qualifier).isEmpty()) {
+			current = columns.get(qualifier).firstEntry().getValue();
+		}
+		return expected == null ? current == null
+				: current != null && Bytes.equals(expected, current);
+	}
+
+	private Row getOrCreateRow(byte[] rowKey) {
+		Row row = rows.get(rowKey);
+		if (row == null) {
+			Row created = new Row();
+			row = rows.putIfAbsent(rowKey, created);
+			if (row == null) {
+				row = created;
+			}
+		}
+		return row;
+	}
+
+	private Result get(Get get) {
+		return toResult(get.getRow(), rows.get(get.getRow()), get.getFamilyMap(),
+				get.getTimeRange(), get.getMaxVersions());
+	}
+
+	private Result toResult(byte[] rowKey, Row row,
+			Map<byte[], NavigableSet<byte[]>> wanted, TimeRange timeRange, int maxVersions) {
+		List<KeyValue> kvs = new ArrayList<KeyValue>();
+		if (row != null) {
+			synchronized (row) {
+				for (Map.Entry<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> family : row.entrySet()) {
+					NavigableSet<byte[]> qualifiers = null;
+					if (wanted != null && !wanted.isEmpty()) {
+						if (!wanted.containsKey(family.getKey())) {
+							continue;
+						}
+						qualifiers = wanted.get(family.getKey());
+					}
+					for (Map.Entry<byte[], NavigableMap<Long, byte[]>> column : family.getValue().entrySet()) {
+						if (qualifiers != null && !qualifiers.contains(column.getKey())) {
+							continue;
+						}
+						int versions = 0;
+						for (Map.Entry<Long, byte[]> cell : column.getValue().entrySet()) {
+							long ts = cell.getKey().longValue();
+							if (timeRange != null && !timeRange.withinTimeRange(ts)) {
+								continue;
+							}
+							kvs.add(new KeyValue(rowKey, family.getKey(), column.getKey(), ts,
+									cell.getValue()));
+							if (++versions >= maxVersions) {
+								break;
+							}
+						}
+					}
+				}
+			}
+		}
+		return new Result(kvs.toArray(new KeyValue[kvs.size()]));
+	}
+
+	private ResultScanner scan(Scan scan) {
+		NavigableMap<byte[], Row> range = rows;
+		if (scan.getStartRow() != null && scan.getStartRow().length > 0) {
+			range = range.tailMap(scan.getStartRow(), true);
+		}
+		if (scan.getStopRow() != null && scan.getStopRow().length > 0) {
+			range = range.headMap(scan.getStopRow(), false);
+		}
+		final List<Result> results = new ArrayList<Result>();
+		for (Map.Entry<byte[], Row> row : range.entrySet()) {
+			Result result = toResult(row.getKey(), row.getValue(), scan.getFamilyMap(),
+					scan.getTimeRange(), scan.getMaxVersions());
+			if (!result.isEmpty()) {
+				results.add(result);
+			}
+		}
+		return new ResultScanner() {
+			private final Iterator<Result> it = results.iterator();
+
+			@Override
+			public Result next() throws IOException {
+				simulate("next");
+				return it.hasNext() ? it.next() : null;
+			}
+
+			@Override
+			public Result[] next(int nbRows) throws IOException {
+				List<Result> batch = new ArrayList<Result>(nbRows);
+				Result result;
+				while (batch.size() < nbRows && (result = next()) != null) {
+					batch.add(result);
+				}
+				return batch.toArray(new Result[batch.size()]);
+			}
+
+			@Override
+			public void close() {
+			}
+
+			@Override
+			public Iterator<Result> iterator() {
+				return it;
+			}
+		};
+	}
+}
@@ -0,0 +1,39 @@
+package org.archive.io.hbase;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTableInterface;
+
+/**
+ * Hands out clients of {@link InMemoryTable}s, one table per name, so
+ * {@link HBaseWriterPool} and the processor can run without a cluster.
+ */
+public class InMemoryTableFactory implements HBaseTableFactory {
+
+	private final ConcurrentMap<String, InMemoryTable> tables =
+			new ConcurrentHashMap<String, InMemoryTable>();
+
+	@Override
+	public HTableInterface createTable(Configuration conf, String tableName,
+			HBaseParameters parameters) throws IOException {
+		return getTable(tableName).newClient();
+	}
+
+	/**
+	 * @return the table of the given name, created empty if needed
+	 */
+	public InMemoryTable getTable(String tableName) {
+		InMemoryTable table = tables.get(tableName);
+		if (table == null) {
+			InMemoryTable created = new InMemoryTable(tableName);
+			table = tables.putIfAbsent(tableName, created);
+			if (table == null) {
+				table = created;
+			}
+		}
+		return table;
+	}
+}
@@ -0,0 +1,75 @@
+package org.archive.io.hbase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+import org.archive.util.Recorder;
+
+/**
+ * Makes fetched CrawlURIs with a recorded request and response, to drive
+ * {@link HBaseWriter} against {@link InMemoryTable}s.
+ */
+public class RecordedCrawlURIs {
+
+	private static final AtomicInteger serial = new AtomicInteger();
+
+	private static final File scratchDir = new File(System.getProperty("java.io.tmpdir"));
+
+	/**
+	 * @return a CrawlURI whose recorder holds a request, response headers and
+	 *         the given content
+	 */
+	public static CrawlURI newCrawlURI(String url, int status, String contentType,
+			byte[] content) throws IOException {
+		CrawlURI curi = new CrawlURI(UURIFactory.getInstance(url));
+		curi.setFetchStatus(status);
+		curi.setFetchBeginTime(System.currentTimeMillis());
+		curi.setContentType(contentType);
+
+		byte[] request = Bytes.toBytes("GET " + url + " HTTP/1.1\r\n\r\n");
+		byte[] headers = Bytes.toBytes("HTTP/1.1 " + status + " OK\r\nContent-Type: "
+				+ contentType + "\r\nContent-Length: " + content.length + "\r\n\r\n");
+
+		Recorder recorder = new Recorder(scratchDir, "RecordedCrawlURIs-"
+				+ serial.incrementAndGet(), 4 * 1024, 64 * 1024);
+		OutputStream out = recorder.outputWrap(new ByteArrayOutputStream());
+		out.write(request);
+		byte[] response = new byte[headers.length + content.length];
+		System.arraycopy(headers, 0, response, 0, headers.length);
+		System.arraycopy(content, 0, response, headers.length, content.length);
+		InputStream in = recorder.inputWrap(new ByteArrayInputStream(response));
+		for (int n = 0; n < headers.length; n++) {
+			in.read();
+		}
+		recorder.markContentBegin();
+		byte[] buffer = new byte[8 * 1024];
+		while (in.read(buffer) != -1) {
+			// recorded as it is read
+		}
+		recorder.close();
+		curi.setRecorder(recorder);
+		curi.setContentSize(response.length);
+		return curi;
+	}
+
+	/**
+	 * Write the CrawlURI with the given scope and clean up its recorder.
+	 */
+	public static void write(HBaseWriter writer, CrawlURI curi, WriteScope scope)
+			throws IOException {
+		try {
+			writer.write(curi, "127.0.0.1", curi.getRecorder().getRecordedOutput(),
+					curi.getRecorder().getRecordedInput(), scope);
+		} finally {
+			curi.getRecorder().cleanup();
+		}
+	}
+}
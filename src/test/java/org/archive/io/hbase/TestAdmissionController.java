@@ -0,0 +1,81 @@
+package org.archive.io.hbase;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import org.archive.io.hbase.AdmissionController.Operation;
+
+/**
+ * The Class TestAdmissionController.
+ */
+public class TestAdmissionController {
+
+	/** one millisecond in nanoseconds */
+	static final long MS = 1000L * 1000L;
+
+	/**
+	 * A controller whose clock only moves when the test moves it.
+	 */
+	static class ManualClockController extends AdmissionController {
+		long now = 1000 * MS;
+
+		ManualClockController(int minInFlight, int maxInFlight, long targetLatencyMs,
+				long maxBatchBytes) {
+			super(minInFlight, maxInFlight, targetLatencyMs, maxBatchBytes);
+		}
+
+		@Override
+		protected long nanoTime() {
+			return now;
+		}
+	}
+
+	/**
+	 * Test that a failure halves the limit, once per decrease interval, and
+	 * fast calls bring it back.
+	 */
+	@Test()
+	public void testDecreaseAndRecover() {
+		ManualClockController controller = new ManualClockController(1, 8, 100, 1024 * 1024);
+		Assert.assertEquals(controller.getLimit(), 8);
+		Assert.assertEquals(controller.getBatchBytes(), 1024 * 1024);
+
+		controller.record(Operation.CHECK_AND_PUT, 10 * MS, false);
+		Assert.assertEquals(controller.getLimit(), 4);
+		Assert.assertEquals(controller.getBatchBytes(), 512 * 1024);
+
+		// a second slow call within the decrease interval doesn't count again
+		controller.now += 399 * MS;
+		controller.record(Operation.GET, 500 * MS, true);
+		Assert.assertEquals(controller.getLimit(), 4);
+		Assert.assertEquals(controller.getSlowCount(), 1);
+
+		// one after it does
+		controller.now += 1 * MS;
+		controller.record(Operation.GET, 500 * MS, true);
+		Assert.assertEquals(controller.getLimit(), 2);
+		Assert.assertEquals(controller.getSlowCount(), 2);
+
+		for (int i = 0; i < 100; i++) {
+			controller.record(Operation.FLUSH, 10 * MS, true);
+		}
+		Assert.assertEquals(controller.getLimit(), 8);
+	}
+
+	/**
+	 * Test that acquire admits up to the limit.
+	 *
+	 * @throws InterruptedException if interrupted
+	 */
+	@Test()
+	public void testAcquireRelease() throws InterruptedException {
+		AdmissionController controller = new AdmissionController(1, 2, 100, 1024);
+		controller.acquire();
+		controller.acquire();
+		Assert.assertEquals(controller.getInFlight(), 2);
+		controller.release();
+		controller.acquire();
+		Assert.assertEquals(controller.getInFlight(), 2);
+		Assert.assertEquals(controller.getWaitCount(), 0);
+	}
+}
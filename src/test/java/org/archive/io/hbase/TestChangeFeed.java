@@ -0,0 +1,179 @@
+package org.archive.io.hbase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * The Class TestChangeFeed.
+ */
+public class TestChangeFeed {
+
+	/**
+	 * Test that appended entries end up in a completed segment on close.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testAppendAndClose() throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"TestChangeFeed-" + System.currentTimeMillis());
+		ChangeFeed feed = new ChangeFeed(dir, 1024 * 1024, 60 * 1000, 100);
+		feed.append(Bytes.toBytes("com.example/a"),
+				new byte[] { 0x01, (byte) 0xab }, false);
+		feed.append(Bytes.toBytes("com.example/b"), null, true);
+		feed.close();
+
+		try {
+			feed.append(Bytes.toBytes("com.example/c"), null, false);
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertNotNull(e);
+		}
+		Assert.assertEquals(feed.getAppendedCount(), 2);
+		Assert.assertEquals(feed.getDroppedCount(), 1);
+		Assert.assertNotNull(feed.getLastSegmentName());
+
+		File[] segments = dir.listFiles();
+		Assert.assertEquals(segments.length, 1);
+		Assert.assertTrue(segments[0].getName().endsWith(ChangeFeed.SEGMENT_SUFFIX));
+
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new GZIPInputStream(new FileInputStream(segments[0])), "UTF-8"));
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		Assert.assertEquals(lines.size(), 2);
+		Assert.assertTrue(lines.get(0).endsWith("\tW\tcom.example/a\t01ab"));
+		Assert.assertTrue(lines.get(1).endsWith("\tR\tcom.example/b\t-"));
+
+		segments[0].delete();
+		dir.delete();
+	}
+
+	/**
+	 * Test that lost entries mark the next completed segment incomplete.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testLostEntriesMarkSegment() throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"TestChangeFeed-lost-" + System.currentTimeMillis());
+		ChangeFeed feed = new ChangeFeed(dir, 1024 * 1024, 60 * 1000, 100, 10);
+		feed.append(Bytes.toBytes("com.example/a"), null, false);
+		feed.markLost(3);
+		Assert.assertTrue(feed.isIncomplete());
+		feed.close();
+
+		Assert.assertFalse(feed.isIncomplete());
+		Assert.assertEquals(feed.getDroppedCount(), 3);
+		String segment = feed.getLastSegmentName();
+		Assert.assertNotNull(segment);
+		Assert.assertTrue(new File(dir, segment).isFile());
+		Assert.assertTrue(new File(dir, segment + ChangeFeed.INCOMPLETE_SUFFIX).isFile());
+		Assert.assertEquals(dir.listFiles().length, 2);
+
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Test that a flush fails when the change feed can't take its rows, after
+	 * the rows are stored.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testFeedFailureFailsFlush() throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"TestChangeFeed-failure-" + System.currentTimeMillis());
+		ChangeFeed feed = new ChangeFeed(dir, 1024 * 1024, 60 * 1000, 100, 10);
+		HBaseParameters parameters = new HBaseParameters();
+		InMemoryTableFactory tables = new InMemoryTableFactory();
+		InMemoryTable urlTable = tables.getTable(parameters.getUrlTableName());
+		HBaseWriter writer = new HBaseWriter(null, parameters, tables);
+		writer.setChangeFeed(feed);
+		try {
+			RecordedCrawlURIs.write(writer, RecordedCrawlURIs.newCrawlURI(
+					"http://example.com/a", 200, "text/html", Bytes.toBytes("a")), WriteScope.ALL);
+			RecordedCrawlURIs.write(writer, RecordedCrawlURIs.newCrawlURI(
+					"http://example.com/b", 200, "text/html", Bytes.toBytes("b")), WriteScope.ALL);
+			// a closed feed fails every append, like a queue that stays full
+			feed.close();
+			try {
+				writer.flushCommits();
+				Assert.fail();
+			} catch (IOException e) {
+				Assert.assertNotNull(e);
+			}
+			Assert.assertEquals(urlTable.getRowCount(), 2);
+			Assert.assertEquals(feed.getAppendedCount(), 0);
+			Assert.assertEquals(feed.getDroppedCount(), 2);
+			Assert.assertTrue(feed.isIncomplete());
+		} finally {
+			for (File segment : dir.listFiles()) {
+				segment.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Test that a writer only feeds url rows once they are stored.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testWriterFeedsStoredRows() throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"TestChangeFeed-writer-" + System.currentTimeMillis());
+		ChangeFeed feed = new ChangeFeed(dir, 1024 * 1024, 60 * 1000, 100);
+		HBaseParameters parameters = new HBaseParameters();
+		InMemoryTableFactory tables = new InMemoryTableFactory();
+		InMemoryTable urlTable = tables.getTable(parameters.getUrlTableName());
+		HBaseWriter writer = new HBaseWriter(null, parameters, tables);
+		writer.setChangeFeed(feed);
+		try {
+			RecordedCrawlURIs.write(writer, RecordedCrawlURIs.newCrawlURI(
+					"http://example.com/a", 200, "text/html", Bytes.toBytes("a")), WriteScope.ALL);
+			Assert.assertEquals(feed.getAppendedCount(), 0);
+			urlTable.setProfile("put", new InMemoryTable.Profile(0, 0, 1.0));
+			try {
+				writer.flushCommits();
+				Assert.fail();
+			} catch (IOException e) {
+				Assert.assertNotNull(e);
+			}
+			urlTable.setProfile("put", null);
+			Assert.assertEquals(feed.getAppendedCount(), 0);
+
+			RecordedCrawlURIs.write(writer, RecordedCrawlURIs.newCrawlURI(
+					"http://example.com/b", 200, "text/html", Bytes.toBytes("b")), WriteScope.ALL);
+			writer.flushCommits();
+			Assert.assertEquals(feed.getAppendedCount(), 1);
+		} finally {
+			feed.close();
+			for (File segment : dir.listFiles()) {
+				segment.delete();
+			}
+			dir.delete();
+		}
+	}
+}
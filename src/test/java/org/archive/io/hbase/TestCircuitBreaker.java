@@ -0,0 +1,59 @@
+package org.archive.io.hbase;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import org.archive.io.hbase.CircuitBreaker.State;
+
+/**
+ * The Class TestCircuitBreaker.
+ */
+public class TestCircuitBreaker {
+
+	/** one millisecond in nanoseconds */
+	static final long MS = 1000L * 1000L;
+
+	/**
+	 * Test that consecutive failures open the breaker and a trial call after
+	 * the open time closes it again.
+	 *
+	 * @throws InterruptedException if interrupted
+	 */
+	@Test()
+	public void testOpenAndClose() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker("url", 2, 20, 100);
+		Assert.assertTrue(breaker.allowRequest());
+		breaker.record(1 * MS, false);
+		Assert.assertEquals(breaker.getState(), State.CLOSED);
+		// slow calls count as failures too
+		breaker.record(200 * MS, true);
+		Assert.assertEquals(breaker.getState(), State.OPEN);
+		Assert.assertFalse(breaker.allowRequest());
+		Assert.assertEquals(breaker.getRejectedCount(), 1);
+
+		Thread.sleep(30);
+		Assert.assertTrue(breaker.allowRequest());
+		Assert.assertEquals(breaker.getState(), State.HALF_OPEN);
+		// only one trial at a time
+		Assert.assertFalse(breaker.allowRequest());
+		breaker.record(1 * MS, true);
+		Assert.assertEquals(breaker.getState(), State.CLOSED);
+		Assert.assertEquals(breaker.getTripCount(), 1);
+	}
+
+	/**
+	 * Test that a failed trial call reopens the breaker.
+	 *
+	 * @throws InterruptedException if interrupted
+	 */
+	@Test()
+	public void testFailedTrial() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker("content", 1, 20, 100);
+		breaker.record(1 * MS, false);
+		Thread.sleep(30);
+		Assert.assertTrue(breaker.allowRequest());
+		breaker.record(1 * MS, false);
+		Assert.assertEquals(breaker.getState(), State.OPEN);
+		Assert.assertFalse(breaker.allowRequest());
+	}
+}
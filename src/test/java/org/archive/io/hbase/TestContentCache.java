@@ -0,0 +1,36 @@
+package org.archive.io.hbase;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * The Class TestContentCache.
+ */
+public class TestContentCache {
+
+	/**
+	 * Test that the least recently used content is evicted by size and that
+	 * oversized content isn't cached.
+	 */
+	@Test()
+	public void testEviction() {
+		ContentCache cache = new ContentCache(10, 6);
+		byte[] a = Bytes.toBytes("a");
+		byte[] b = Bytes.toBytes("b");
+		byte[] c = Bytes.toBytes("c");
+		cache.put(a, new byte[4]);
+		cache.put(b, new byte[4]);
+		Assert.assertNotNull(cache.get(a));
+		cache.put(c, new byte[4]);
+		Assert.assertEquals(cache.getBytes(), 8);
+		Assert.assertNull(cache.get(b));
+		Assert.assertNotNull(cache.get(a));
+		Assert.assertNotNull(cache.get(c));
+
+		cache.put(b, new byte[7]);
+		Assert.assertNull(cache.get(b));
+		Assert.assertEquals(cache.size(), 2);
+	}
+}
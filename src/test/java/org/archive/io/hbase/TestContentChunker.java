@@ -0,0 +1,183 @@
+package org.archive.io.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * The Class TestContentChunker.
+ */
+public class TestContentChunker {
+
+	/** The chunker. */
+	ContentChunker chunker = new ContentChunker(new HBaseParameters());
+
+	/**
+	 * Test that chunks respect the size bounds and cover the content.
+	 */
+	@Test()
+	public void testBounds() {
+		byte[] content = new byte[1024 * 1024];
+		new Random(1).nextBytes(content);
+		int[] ends = chunker.chunk(content);
+		Assert.assertEquals(ends[ends.length - 1], content.length);
+		int start = 0;
+		for (int i = 0; i < ends.length; i++) {
+			int length = ends[i] - start;
+			Assert.assertTrue(length <= HBaseParameters.CHUNK_MAX_SIZE);
+			if (i < ends.length - 1) {
+				Assert.assertTrue(length > HBaseParameters.CHUNK_MIN_SIZE);
+			}
+			start = ends[i];
+		}
+		// about minimum plus average per chunk
+		Assert.assertTrue(ends.length > 50 && ends.length < 200, "" + ends.length);
+
+		Assert.assertEquals(chunker.chunk(new byte[100]).length, 1);
+		Assert.assertEquals(chunker.chunk(new byte[0]).length, 0);
+	}
+
+	/**
+	 * Test that an insertion only changes the chunks around it.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testInsertionKeepsChunks() throws IOException {
+		byte[] content = new byte[256 * 1024];
+		new Random(2).nextBytes(content);
+		byte[] edited = new byte[content.length + 10];
+		int at = content.length / 2;
+		System.arraycopy(content, 0, edited, 0, at);
+		System.arraycopy(Bytes.toBytes("1234567890"), 0, edited, at, 10);
+		System.arraycopy(content, at, edited, at + 10, content.length - at);
+
+		Set<String> before = hashes(content);
+		Set<String> after = hashes(edited);
+		int shared = 0;
+		for (String hash : after) {
+			if (before.contains(hash)) {
+				shared++;
+			}
+		}
+		Assert.assertTrue(shared >= after.size() - 2, shared + " of " + after.size());
+	}
+
+	private Set<String> hashes(byte[] content) throws IOException {
+		Set<String> hashes = new HashSet<String>();
+		int start = 0;
+		for (int end : chunker.chunk(content)) {
+			hashes.add(Bytes.toStringBinary(HBaseWriter.createHashKey(content, start, end - start)));
+			start = end;
+		}
+		return hashes;
+	}
+
+	/**
+	 * Test that HBaseReader streams chunked content back from its manifest.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testReadChunked() throws IOException {
+		HBaseParameters parameters = new HBaseParameters();
+		InMemoryTableFactory tables = new InMemoryTableFactory();
+		HTableInterface contentTable = tables.createTable(null,
+				parameters.getContentTableName(), parameters);
+		byte[] family = Bytes.toBytes(parameters.getContentColumnFamily());
+		byte[] content = new byte[200 * 1024];
+		new Random(3).nextBytes(content);
+		byte[] hashKey = HBaseWriter.createHashKey(content);
+
+		int[] ends = chunker.chunk(content);
+		int[] lengths = new int[ends.length];
+		List<byte[]> chunkKeys = new ArrayList<byte[]>();
+		int start = 0;
+		for (int i = 0; i < ends.length; i++) {
+			lengths[i] = ends[i] - start;
+			byte[] chunk = new byte[lengths[i]];
+			System.arraycopy(content, start, chunk, 0, lengths[i]);
+			chunkKeys.add(HBaseWriter.createHashKey(chunk));
+			contentTable.put(new Put(chunkKeys.get(i)).add(family,
+					Bytes.toBytes(parameters.getContentColumnName()), chunk));
+			start = ends[i];
+		}
+		byte[] manifest = ChunkManifest.encode(chunkKeys, lengths);
+		contentTable.put(new Put(hashKey).add(family,
+				Bytes.toBytes(parameters.getManifestColumnName()), manifest));
+		Assert.assertEquals(new ChunkManifest(manifest).getContentLength(), content.length);
+
+		HBaseReader reader = new HBaseReader(null, parameters, tables);
+		Assert.assertEquals(reader.getContent(hashKey), content);
+	}
+
+	/**
+	 * Test writers sharing a chunk cache: a document sharing chunks with one
+	 * already written only adds its new chunks, and chunks of a batch whose
+	 * flush failed aren't skipped by another writer.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testWriteChunked() throws IOException {
+		HBaseParameters parameters = new HBaseParameters();
+		parameters.setChunkedContent(true);
+		InMemoryTableFactory tables = new InMemoryTableFactory();
+		InMemoryTable contentTable = tables.getTable(parameters.getContentTableName());
+		HBaseWriter a = new HBaseWriter(null, parameters, tables);
+		HBaseWriter b = new HBaseWriter(null, parameters, tables);
+		b.setChunkCache(a.getChunkCache());
+		HBaseReader reader = new HBaseReader(null, parameters, tables);
+
+		byte[] first = new byte[200 * 1024];
+		new Random(4).nextBytes(first);
+		RecordedCrawlURIs.write(a, RecordedCrawlURIs.newCrawlURI(
+				"http://example.com/first", 200, "text/html", first), WriteScope.ALL);
+		a.flushCommits();
+		int rows = contentTable.getRowCount();
+
+		byte[] second = new byte[first.length];
+		System.arraycopy(first, 0, second, 0, first.length);
+		second[first.length / 2] ^= 1;
+		RecordedCrawlURIs.write(b, RecordedCrawlURIs.newCrawlURI(
+				"http://example.com/second", 200, "text/html", second), WriteScope.ALL);
+		b.flushCommits();
+		// the new document and the chunk or two around the change
+		Assert.assertTrue(contentTable.getRowCount() - rows <= 3,
+				"" + (contentTable.getRowCount() - rows));
+		Assert.assertEquals(reader.getContent(HBaseWriter.createHashKey(first)), first);
+		Assert.assertEquals(reader.getContent(HBaseWriter.createHashKey(second)), second);
+
+		// a buffers new chunks, b writes a document sharing them and flushes
+		// first, then the flush of a fails
+		byte[] third = new byte[200 * 1024];
+		new Random(5).nextBytes(third);
+		byte[] fourth = new byte[third.length];
+		System.arraycopy(third, 0, fourth, 0, third.length);
+		fourth[10] ^= 1;
+		RecordedCrawlURIs.write(a, RecordedCrawlURIs.newCrawlURI(
+				"http://example.com/third", 200, "text/html", third), WriteScope.ALL);
+		RecordedCrawlURIs.write(b, RecordedCrawlURIs.newCrawlURI(
+				"http://example.com/fourth", 200, "text/html", fourth), WriteScope.ALL);
+		b.flushCommits();
+		contentTable.setProfile("put", new InMemoryTable.Profile(0, 0, 1.0));
+		try {
+			a.flushCommits();
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertNotNull(e);
+		}
+		contentTable.setProfile("put", null);
+		Assert.assertEquals(reader.getContent(HBaseWriter.createHashKey(fourth)), fourth);
+	}
+}
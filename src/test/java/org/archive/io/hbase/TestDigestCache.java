@@ -0,0 +1,70 @@
+package org.archive.io.hbase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * The Class TestDigestCache.
+ */
+public class TestDigestCache {
+
+	/**
+	 * Test that the least recently used entry is evicted first.
+	 */
+	@Test()
+	public void testEviction() {
+		DigestCache cache = new DigestCache(2);
+		cache.put("com.example/a", Bytes.toBytes("a"));
+		cache.put("com.example/b", Bytes.toBytes("b"));
+		// touch a so b becomes the eldest
+		Assert.assertNotNull(cache.get("com.example/a"));
+		cache.put("com.example/c", Bytes.toBytes("c"));
+
+		Assert.assertEquals(cache.size(), 2);
+		Assert.assertNull(cache.get("com.example/b"));
+		Assert.assertEquals(Bytes.toString(cache.get("com.example/a")), "a");
+		Assert.assertEquals(Bytes.toString(cache.get("com.example/c")), "c");
+	}
+
+	/**
+	 * Test that a disabled cache stores nothing.
+	 */
+	@Test()
+	public void testDisabled() {
+		DigestCache cache = new DigestCache(0);
+		cache.put("com.example/a", Bytes.toBytes("a"));
+		Assert.assertEquals(cache.size(), 0);
+		Assert.assertNull(cache.get("com.example/a"));
+	}
+
+	/**
+	 * Test that saved entries load back with binary keys and hashes and in
+	 * recency order.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testSaveAndLoad() throws IOException {
+		byte[] hash = new byte[] { 0, '\\', 'x', (byte) 0xff, '\n' };
+		DigestCache cache = new DigestCache(3);
+		cache.put("com.example/a", Bytes.toBytes("a"));
+		cache.put("com.example/b\tc", hash);
+		StringWriter out = new StringWriter();
+		Assert.assertEquals(cache.save(out), 2);
+
+		DigestCache loaded = new DigestCache(3);
+		Assert.assertEquals(loaded.load(new BufferedReader(new StringReader(out.toString()))), 2);
+		loaded.put("com.example/d", Bytes.toBytes("d"));
+		loaded.put("com.example/e", Bytes.toBytes("e"));
+		// a was saved as the least recent entry, so it goes first
+		Assert.assertNull(loaded.get("com.example/a"));
+		Assert.assertEquals(loaded.get("com.example/b\tc"), hash);
+		Assert.assertEquals(loaded.size(), 3);
+	}
+}
@@ -0,0 +1,133 @@
+package org.archive.io.hbase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * The Class TestHBaseReader.
+ */
+public class TestHBaseReader {
+
+	/** The parameters. */
+	HBaseParameters parameters = new HBaseParameters();
+
+	/** The tables. */
+	InMemoryTableFactory tables;
+
+	/** The reader. */
+	HBaseReader reader;
+
+	/**
+	 * Store two records the way HBaseWriter lays them out.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@BeforeMethod()
+	public void createTables() throws IOException {
+		tables = new InMemoryTableFactory();
+		HTableInterface urlTable = tables.createTable(null,
+				parameters.getUrlTableName(), parameters);
+		HTableInterface contentTable = tables.createTable(null,
+				parameters.getContentTableName(), parameters);
+		byte[] curi = Bytes.toBytes(parameters.getCuriColumnFamily());
+		byte[] content = Bytes.toBytes(parameters.getContentColumnFamily());
+		for (String url : new String[] { "http://a.example.com/", "http://b.example.com/x" }) {
+			byte[] body = Bytes.toBytes("body of " + url);
+			byte[] hashKey = HBaseWriter.createHashKey(body);
+			urlTable.put(new Put(HBaseWriter.createURLKey(url), 1000L)
+					.add(curi, Bytes.toBytes(parameters.getUrlColumnName()), Bytes.toBytes(url))
+					.add(curi, Bytes.toBytes(parameters.getStatusColumnName()), Bytes.toBytes(200))
+					.add(curi, Bytes.toBytes(parameters.getFetchTimeColumnName()), Bytes.toBytes(1000L))
+					.add(curi, Bytes.toBytes(parameters.getMimeTypeColumnName()), Bytes.toBytes("text/html"))
+					.add(curi, Bytes.toBytes(parameters.getHashColumnName()), hashKey));
+			contentTable.put(new Put(hashKey, 1000L)
+					.add(content, Bytes.toBytes(parameters.getContentColumnName()), body));
+		}
+		reader = new HBaseReader(null, parameters, tables);
+	}
+
+	/**
+	 * Test url to record to content lookups.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testGet() throws IOException {
+		HBaseRecord record = reader.get("http://a.example.com/");
+		Assert.assertNotNull(record);
+		Assert.assertEquals(record.getUrl(), "http://a.example.com/");
+		Assert.assertEquals(record.getStatus(), 200);
+		Assert.assertEquals(record.getFetchTime(), 1000L);
+		Assert.assertEquals(record.getMimeType(), "text/html");
+		Assert.assertFalse(record.isRevisit());
+		Assert.assertEquals(Bytes.toString(reader.getContent(record)),
+				"body of http://a.example.com/");
+		Assert.assertNull(reader.get("http://c.example.com/"));
+	}
+
+	/**
+	 * Test batched lookups keep their order and serve content from the cache.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testBatchedAndCached() throws IOException {
+		reader.setContentCache(new ContentCache(1024, 1024));
+		List<HBaseRecord> records = reader.get(Arrays.asList(
+				"http://b.example.com/x", "http://c.example.com/", "http://a.example.com/"));
+		Assert.assertEquals(records.size(), 3);
+		Assert.assertEquals(records.get(0).getUrl(), "http://b.example.com/x");
+		Assert.assertNull(records.get(1));
+		Assert.assertEquals(records.get(2).getUrl(), "http://a.example.com/");
+
+		List<byte[]> contents = reader.getContents(Arrays.asList(
+				records.get(0).getHashKey(), records.get(2).getHashKey()));
+		Assert.assertEquals(Bytes.toString(contents.get(0)), "body of http://b.example.com/x");
+		Assert.assertEquals(reader.getContentCache().size(), 2);
+
+		InMemoryTable contentTable = tables.getTable(parameters.getContentTableName());
+		long gets = contentTable.getCallCount("get");
+		InputStream in = reader.openContent(records.get(2).getHashKey());
+		Assert.assertEquals(in.read(), 'b');
+		in.close();
+		Assert.assertEquals(contentTable.getCallCount("get"), gets);
+		Assert.assertEquals(reader.getContentCache().getHitCount(), 1);
+	}
+
+	/**
+	 * Test that the placeholder of content not flushed yet reads as no
+	 * content and isn't cached.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testPlaceholderIsNotContent() throws IOException {
+		ContentCache cache = new ContentCache(1024 * 1024, 1024);
+		reader.setContentCache(cache);
+		HTableInterface contentTable = tables.createTable(null,
+				parameters.getContentTableName(), parameters);
+		byte[] family = Bytes.toBytes(parameters.getContentColumnFamily());
+		byte[] qualifier = Bytes.toBytes(parameters.getContentColumnName());
+		byte[] body = Bytes.toBytes("not flushed yet");
+		byte[] hashKey = HBaseWriter.createHashKey(body);
+		contentTable.put(new Put(hashKey, 1000L).add(family, qualifier, new byte[0]));
+
+		Assert.assertNull(reader.getContent(hashKey));
+		Assert.assertNull(reader.openContent(hashKey));
+		Assert.assertNull(reader.getContents(Arrays.asList(hashKey)).get(0));
+		Assert.assertEquals(cache.size(), 0);
+
+		contentTable.put(new Put(hashKey, 2000L).add(family, qualifier, body));
+		Assert.assertEquals(reader.getContent(hashKey), body);
+	}
+}
@@ -0,0 +1,61 @@
+package org.archive.io.hbase;
+
+import java.io.IOException;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * The Class TestHBaseScans.
+ */
+public class TestHBaseScans {
+
+	/**
+	 * Test the settings of a time range scan and that it only returns the
+	 * latest cells written within the range.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testTimeRangeScan() throws IOException {
+		HBaseParameters parameters = new HBaseParameters();
+		Scan scan = HBaseScans.createTimeRangeScan(parameters, 1000L, 2000L);
+		Assert.assertEquals(scan.getTimeRange().getMin(), 1000L);
+		Assert.assertEquals(scan.getTimeRange().getMax(), 2000L);
+		Assert.assertEquals(scan.getMaxVersions(), 1);
+		Assert.assertEquals(scan.getCaching(), HBaseScans.DEFAULT_CACHING);
+		Assert.assertFalse(scan.getCacheBlocks());
+		Assert.assertTrue(scan.getFamilyMap().containsKey(
+				Bytes.toBytes(parameters.getCuriColumnFamily())));
+
+		HTableInterface table = new InMemoryTable(parameters.getUrlTableName()).newClient();
+		byte[] curi = Bytes.toBytes(parameters.getCuriColumnFamily());
+		byte[] status = Bytes.toBytes(parameters.getStatusColumnName());
+		byte[] other = Bytes.toBytes("other");
+		table.put(new Put(Bytes.toBytes("com.example/a"), 500L).add(curi, status, Bytes.toBytes(200)));
+		table.put(new Put(Bytes.toBytes("com.example/a"), 1500L).add(curi, status, Bytes.toBytes(404)));
+		table.put(new Put(Bytes.toBytes("com.example/a"), 1700L).add(curi, status, Bytes.toBytes(500)));
+		table.put(new Put(Bytes.toBytes("com.example/a"), 1600L).add(other, status, Bytes.toBytes(0)));
+		table.put(new Put(Bytes.toBytes("com.example/b"), 2000L).add(curi, status, Bytes.toBytes(200)));
+
+		ResultScanner scanner = table.getScanner(scan);
+		Result result = scanner.next();
+		Assert.assertEquals(Bytes.toString(result.getRow()), "com.example/a");
+		Assert.assertEquals(result.size(), 1);
+		Assert.assertEquals(Bytes.toInt(result.getValue(curi, status)), 500);
+		Assert.assertNull(scanner.next());
+		scanner.close();
+
+		scanner = table.getScanner(HBaseScans.createChangedSinceScan(parameters, 2000L));
+		Assert.assertEquals(Bytes.toString(scanner.next().getRow()), "com.example/b");
+		Assert.assertNull(scanner.next());
+		scanner.close();
+	}
+}
@@ -0,0 +1,72 @@
+package org.archive.io.hbase;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import org.apache.hadoop.hbase.HColumnDescriptor;
+
+/**
+ * The Class TestHBaseSchema.
+ */
+public class TestHBaseSchema {
+
+	/**
+	 * Test that the tables and families follow the parameters.
+	 */
+	@Test()
+	public void testTableFamilies() {
+		HBaseParameters parameters = new HBaseParameters();
+		Map<String, String[]> tables = HBaseSchema.getTableFamilies(parameters);
+		Assert.assertEquals(tables.size(), 2);
+		Assert.assertEquals(tables.get(parameters.getUrlTableName()),
+				new String[] { parameters.getCuriColumnFamily() });
+		Assert.assertEquals(tables.get(parameters.getContentTableName()),
+				new String[] { parameters.getContentColumnFamily(), parameters.getCuriColumnFamily() });
+
+		parameters.setStatusIndexTableName("status");
+		parameters.setHostIndexTableName("");
+		tables = HBaseSchema.getTableFamilies(parameters);
+		Assert.assertEquals(tables.size(), 3);
+		Assert.assertEquals(tables.get("status"),
+				new String[] { parameters.getIndexColumnFamily() });
+	}
+
+	/**
+	 * Test that families get the versions and time to live of the parameters.
+	 */
+	@Test()
+	public void testCreateFamily() {
+		HBaseParameters parameters = new HBaseParameters();
+		parameters.setMaxVersions(7);
+		parameters.setTimeToLive(3600);
+		HColumnDescriptor family = HBaseSchema.createFamily(parameters, "c");
+		Assert.assertEquals(family.getNameAsString(), "c");
+		Assert.assertEquals(family.getMaxVersions(), 7);
+		Assert.assertEquals(family.getTimeToLive(), 3600);
+	}
+
+	/**
+	 * Test that a table with the families needed validates and one missing
+	 * a family doesn't.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testValidateTable() throws IOException {
+		HBaseParameters parameters = new HBaseParameters();
+		InMemoryTableFactory tables = new InMemoryTableFactory();
+		tables.getTable("url").setFamilies(parameters.getCuriColumnFamily());
+		HBaseSchema.validateTable(tables.createTable(null, "url", parameters), "url",
+				parameters.getCuriColumnFamily());
+		try {
+			HBaseSchema.validateTable(tables.createTable(null, "url", parameters), "url",
+					parameters.getCuriColumnFamily(), parameters.getContentColumnFamily());
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage().contains(parameters.getContentColumnFamily()));
+		}
+	}
+}
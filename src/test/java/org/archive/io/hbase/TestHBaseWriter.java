@@ -1,14 +1,22 @@
 package org.archive.io.hbase;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.archive.io.hbase.HBaseWriter;
 import org.archive.io.hbase.HBaseParameters;
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+import org.archive.util.Recorder;
 
 /**
  * The Class TestHBaseWriter.
@@ -34,6 +42,9 @@ public class TestHBaseWriter {
 	/** The hw. */
 	HBaseWriter hw;
 
+	/** The fetch time of the last record written. */
+	long fetchTime = 1000;
+
 	/**
 	 * Test that bad table values cannot be used when creating an instance of
 	 * HbaseWriter.
@@ -59,4 +70,258 @@ public class TestHBaseWriter {
 		}
 
 	}
+
+	/**
+	 * Test that a dns record is written as a single row of its own table
+	 * without touching the content table.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testCompactDnsRecord() throws IOException {
+		HBaseParameters parameters = new HBaseParameters();
+		parameters.setCompactNonHttpRecords(true);
+		parameters.setNonHttpTableName(dnsTable);
+		InMemoryTableFactory tables = new InMemoryTableFactory();
+		hw = new HBaseWriter(null, parameters, tables);
+
+		byte[] payload = Bytes.toBytes("20261018120000\nexample.com.\t300\tIN\tA\t192.0.2.1\n");
+		File scratchDir = new File(System.getProperty("java.io.tmpdir"));
+		Recorder recorder = new Recorder(scratchDir, "testCompactDnsRecord", 1024, 1024);
+		recorder.outputWrap(new ByteArrayOutputStream());
+		InputStream in = recorder.inputWrap(new ByteArrayInputStream(payload));
+		recorder.markContentBegin();
+		while (in.read() != -1) {
+			// recorded as it is read
+		}
+		recorder.close();
+		CrawlURI curi = new CrawlURI(UURIFactory.getInstance("dns:example.com"));
+		curi.setFetchStatus(1);
+		curi.setContentType("text/dns");
+		try {
+			hw.write(curi, "192.0.2.53", recorder.getRecordedOutput(),
+					recorder.getRecordedInput());
+			hw.close();
+		} finally {
+			recorder.cleanup();
+		}
+
+		Assert.assertEquals(tables.getTable(dnsTable).getRowCount(), 1);
+		Assert.assertEquals(tables.getTable(parameters.getUrlTableName()).getRowCount(), 0);
+		Assert.assertEquals(tables.getTable(parameters.getContentTableName())
+				.getCallCount("checkAndPut"), 0);
+
+		parameters.setUrlTableName(dnsTable);
+		HBaseRecord record = new HBaseReader(null, parameters, tables).get("dns:example.com");
+		Assert.assertEquals(Bytes.toString(record.getRowKey()), "com.example");
+		Assert.assertEquals(record.getStatus(), 1);
+		Assert.assertEquals(record.getIp(), "192.0.2.53");
+		Assert.assertEquals(record.getResponseHeaders(), payload);
+	}
+
+	/**
+	 * Test that a failed content flush drops the url rows of the batch, gives
+	 * all their memory back and doesn't leave the content taken as stored.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testFailedContentFlush() throws IOException {
+		HBaseParameters parameters = new HBaseParameters();
+		InMemoryTableFactory tables = new InMemoryTableFactory();
+		InMemoryTable urlTable = tables.getTable(parameters.getUrlTableName());
+		InMemoryTable contentTable = tables.getTable(parameters.getContentTableName());
+		MemoryBudget budget = new MemoryBudget(1024 * 1024, 10);
+		hw = new HBaseWriter(null, parameters, tables);
+		hw.setMemoryBudget(budget);
+
+		RecordedCrawlURIs.write(hw, RecordedCrawlURIs.newCrawlURI(
+				"http://example.com/a", 200, "text/html", Bytes.toBytes("a")), WriteScope.ALL);
+		Assert.assertTrue(budget.getUsedBytes() > 0);
+		contentTable.setProfile("put", new InMemoryTable.Profile(0, 0, 1.0));
+		try {
+			hw.flushCommits();
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertNotNull(e);
+		}
+		contentTable.setProfile("put", null);
+		Assert.assertEquals(budget.getUsedBytes(), 0);
+		Assert.assertEquals(hw.getPendingBytes(), 0);
+
+		// nothing of the failed batch is written later
+		RecordedCrawlURIs.write(hw, RecordedCrawlURIs.newCrawlURI(
+				"http://example.com/b", 200, "text/html", Bytes.toBytes("b")), WriteScope.ALL);
+		hw.flushCommits();
+		Assert.assertEquals(urlTable.getRowCount(), 1);
+		Assert.assertTrue(urlTable.getRowKeys().contains(HBaseWriter.createURLKey("http://example.com/b")));
+
+		// the placeholder of the failed content is gone, so a refetch of the
+		// same content stores it instead of pointing at nothing
+		HBaseReader reader = new HBaseReader(null, parameters, tables);
+		byte[] hashKey = HBaseWriter.createHashKey(Bytes.toBytes("a"));
+		Assert.assertNull(reader.getContent(hashKey));
+		RecordedCrawlURIs.write(hw, RecordedCrawlURIs.newCrawlURI(
+				"http://example.com/c", 200, "text/html", Bytes.toBytes("a")), WriteScope.ALL);
+		hw.flushCommits();
+		Assert.assertEquals(reader.getContent(reader.get("http://example.com/c")), Bytes.toBytes("a"));
+		Assert.assertEquals(reader.getContent(hashKey), Bytes.toBytes("a"));
+		reader.close();
+	}
+
+	/**
+	 * Test that a writer whose own records exhaust the budget flushes them
+	 * instead of waiting for memory only it can give back.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testFlushesBeforeWaiting() throws IOException {
+		HBaseParameters parameters = new HBaseParameters();
+		InMemoryTableFactory tables = new InMemoryTableFactory();
+		InMemoryTable urlTable = tables.getTable(parameters.getUrlTableName());
+		MemoryBudget budget = new MemoryBudget(3 * 1024, 10000);
+		hw = new HBaseWriter(null, parameters, tables);
+		hw.setMemoryBudget(budget);
+
+		RecordedCrawlURIs.write(hw, RecordedCrawlURIs.newCrawlURI(
+				"http://example.com/a", 200, "text/html", new byte[1024]), WriteScope.ALL);
+		Assert.assertEquals(urlTable.getRowCount(), 0);
+		RecordedCrawlURIs.write(hw, RecordedCrawlURIs.newCrawlURI(
+				"http://example.com/b", 200, "text/html", new byte[1024]), WriteScope.ALL);
+		// the first record was flushed to make room for the second
+		Assert.assertEquals(urlTable.getRowCount(), 1);
+		Assert.assertEquals(budget.getWaitCount(), 0);
+		Assert.assertEquals(budget.getForcedCount(), 0);
+		Assert.assertEquals(budget.getUsedBytes(), hw.getPendingBytes());
+	}
+
+	/**
+	 * Test that METADATA and HEADERS scopes never touch the content table and
+	 * only write the request and response headers with the HEADERS scope.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testWriteScopes() throws IOException {
+		HBaseParameters parameters = new HBaseParameters();
+		InMemoryTableFactory tables = new InMemoryTableFactory();
+		InMemoryTable contentTable = tables.getTable(parameters.getContentTableName());
+		hw = new HBaseWriter(null, parameters, tables);
+		HBaseReader reader = new HBaseReader(null, parameters, tables);
+
+		RecordedCrawlURIs.write(hw, RecordedCrawlURIs.newCrawlURI("http://example.com/metadata",
+				200, "text/html", Bytes.toBytes("metadata")), WriteScope.METADATA);
+		RecordedCrawlURIs.write(hw, RecordedCrawlURIs.newCrawlURI("http://example.com/headers",
+				200, "text/html", Bytes.toBytes("headers")), WriteScope.HEADERS);
+		hw.flushCommits();
+		Assert.assertEquals(contentTable.getCallCount("checkAndPut"), 0);
+		Assert.assertEquals(contentTable.getCallCount("put"), 0);
+		Assert.assertEquals(contentTable.getRowCount(), 0);
+
+		HBaseRecord metadata = reader.get("http://example.com/metadata");
+		Assert.assertEquals(metadata.getStatus(), 200);
+		Assert.assertNull(metadata.getRequest());
+		Assert.assertNull(metadata.getResponseHeaders());
+		Assert.assertNull(metadata.getHashKey());
+
+		HBaseRecord headers = reader.get("http://example.com/headers");
+		Assert.assertEquals(headers.getStatus(), 200);
+		Assert.assertTrue(Bytes.toString(headers.getRequest()).startsWith("GET "));
+		Assert.assertTrue(Bytes.toString(headers.getResponseHeaders()).startsWith("HTTP/1.1 200 OK"));
+		Assert.assertFalse(Bytes.toString(headers.getResponseHeaders()).contains("headers"));
+		Assert.assertNull(headers.getHashKey());
+		reader.close();
+	}
+
+	/**
+	 * Test that cells carry the fetch time of their record when asked to,
+	 * and the time of the write otherwise.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testFetchTimestamps() throws IOException {
+		HBaseParameters parameters = new HBaseParameters();
+		parameters.setUseFetchTimestamp(true);
+		InMemoryTableFactory tables = new InMemoryTableFactory();
+		hw = new HBaseWriter(null, parameters, tables);
+		HBaseReader reader = new HBaseReader(null, parameters, tables);
+		CrawlURI curi = RecordedCrawlURIs.newCrawlURI("http://example.com/fetched",
+				200, "text/html", Bytes.toBytes("fetched"));
+		curi.setFetchBeginTime(12345L);
+		RecordedCrawlURIs.write(hw, curi, WriteScope.ALL);
+		hw.flushCommits();
+		HBaseRecord record = reader.get("http://example.com/fetched");
+		Assert.assertEquals(record.getTimestamp(), 12345L);
+		Assert.assertEquals(record.getFetchTime(), 12345L);
+		Assert.assertEquals(reader.getContentRow(record.getHashKey()).raw()[0].getTimestamp(), 12345L);
+
+		parameters.setUseFetchTimestamp(false);
+		long start = System.currentTimeMillis();
+		curi = RecordedCrawlURIs.newCrawlURI("http://example.com/written",
+				200, "text/html", Bytes.toBytes("written"));
+		curi.setFetchBeginTime(12345L);
+		RecordedCrawlURIs.write(hw, curi, WriteScope.ALL);
+		hw.flushCommits();
+		record = reader.get("http://example.com/written");
+		Assert.assertTrue(record.getTimestamp() >= start);
+		Assert.assertEquals(record.getFetchTime(), 12345L);
+		reader.close();
+	}
+
+	/**
+	 * Test revisit mode: unchanged content only writes a revisit marker,
+	 * changed content a full record, and content whose flush failed isn't
+	 * taken as stored by the next fetch.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testRevisits() throws IOException {
+		HBaseParameters parameters = new HBaseParameters();
+		parameters.setRevisitMode(true);
+		InMemoryTableFactory tables = new InMemoryTableFactory();
+		InMemoryTable contentTable = tables.getTable(parameters.getContentTableName());
+		hw = new HBaseWriter(null, parameters, tables);
+		HBaseReader reader = new HBaseReader(null, parameters, tables);
+		String url = "http://example.com/";
+
+		writeAndFlush(url, "first");
+		Assert.assertFalse(reader.get(url).isRevisit());
+		Assert.assertEquals(contentTable.getCallCount("checkAndPut"), 1);
+
+		writeAndFlush(url, "first");
+		Assert.assertTrue(reader.get(url).isRevisit());
+		Assert.assertEquals(contentTable.getCallCount("checkAndPut"), 1);
+
+		writeAndFlush(url, "second");
+		HBaseRecord record = reader.get(url);
+		Assert.assertFalse(record.isRevisit());
+		// the revisit cell of the previous fetch is still there
+		Assert.assertEquals(record.getRevisitTime(), -1);
+		Assert.assertEquals(record.getHashKey(), HBaseWriter.createHashKey(Bytes.toBytes("second")));
+
+		contentTable.setProfile("put", new InMemoryTable.Profile(0, 0, 1.0));
+		try {
+			writeAndFlush(url, "third");
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertNotNull(e);
+		}
+		contentTable.setProfile("put", null);
+		writeAndFlush(url, "third");
+		record = reader.get(url);
+		Assert.assertFalse(record.isRevisit());
+		Assert.assertEquals(record.getHashKey(), HBaseWriter.createHashKey(Bytes.toBytes("third")));
+	}
+
+	private void writeAndFlush(String url, String content) throws IOException {
+		CrawlURI curi = RecordedCrawlURIs.newCrawlURI(url, 200, "text/html",
+				Bytes.toBytes(content));
+		// distinct fetch times, so a full record never looks like a revisit
+		curi.setFetchBeginTime(++fetchTime);
+		RecordedCrawlURIs.write(hw, curi, WriteScope.ALL);
+		hw.flushCommits();
+	}
 }
@@ -1,11 +1,19 @@
 package org.archive.io.hbase;
 
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableNotFoundException;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.archive.io.WriterPoolMember;
 import org.archive.io.hbase.HBaseParameters;
 import org.archive.io.hbase.HBaseWriterPool;
 
@@ -52,4 +60,125 @@ public class TestHBaseWriterPool {
 		Assert.assertEquals(hwp.getSerialNo().intValue(), 0);
 		Assert.assertNull(hwp.getSettings().getPrefix());
 	}
+
+	/**
+	 * Test that validation prefetches the regions of every table only when
+	 * asked, fails fast on a missing table or a table missing a family, and
+	 * that warming makes the writers up front.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testValidateAndWarm() throws IOException {
+		InMemoryTableFactory tables = new InMemoryTableFactory() {
+			@Override
+			public HTableInterface createTable(Configuration conf, String tableName,
+					HBaseParameters parameters) throws IOException {
+				if (tableName.equals("missing")) {
+					throw new TableNotFoundException(tableName);
+				}
+				return super.createTable(conf, tableName, parameters);
+			}
+		};
+		HBaseParameters parameters = new HBaseParameters();
+		// stands in for the connection's region cache
+		final Set<String> cachedTables = new HashSet<String>();
+		HBaseWriterPool pool = new HBaseWriterPool(new AtomicInteger(), zkQuorum,
+				zkClientPort, parameters, 3, poolMaximumWait, tables) {
+			@Override
+			protected int prefetchRegions(HTableInterface table) {
+				cachedTables.add(Bytes.toString(table.getTableName()));
+				return 1;
+			}
+		};
+		pool.validateTables(false);
+		Assert.assertTrue(cachedTables.isEmpty());
+		pool.validateTables(true);
+		Assert.assertTrue(cachedTables.equals(
+				HBaseSchema.getTableFamilies(parameters).keySet()), cachedTables.toString());
+		pool.warm(3);
+		Assert.assertEquals(pool.getNumIdle(), 3);
+		Assert.assertEquals(pool.getNumActive(), 0);
+		// a checkpoint flushes every writer, borrowed or not
+		WriterPoolMember borrowed = pool.borrowFile();
+		Assert.assertEquals(pool.flushAll(), 3);
+		// a closed writer isn't flushed any more
+		pool.invalidateFile(borrowed);
+		Assert.assertEquals(pool.flushAll(), 2);
+		pool.close();
+
+		// the content table lacks the family of its back references
+		tables.getTable(parameters.getContentTableName()).setFamilies(
+				parameters.getContentColumnFamily());
+		pool = new HBaseWriterPool(new AtomicInteger(), zkQuorum, zkClientPort,
+				parameters, 3, poolMaximumWait, tables);
+		try {
+			pool.validateTables(false);
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage().contains(parameters.getCuriColumnFamily()));
+		}
+		tables.getTable(parameters.getContentTableName()).setFamilies((String[]) null);
+
+		parameters.setStatusIndexTableName("missing");
+		pool = new HBaseWriterPool(new AtomicInteger(), zkQuorum, zkClientPort,
+				parameters, 3, poolMaximumWait, tables);
+		try {
+			pool.validateTables(false);
+			Assert.fail();
+		} catch (TableNotFoundException e) {
+			Assert.assertNotNull(e);
+		}
+	}
+
+	/**
+	 * Test that a host always maps to the same stripe writer and that stripes
+	 * are flushed with the pool.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testStripes() throws IOException {
+		HBaseWriterPool pool = new HBaseWriterPool(new AtomicInteger(), zkQuorum,
+				zkClientPort, new HBaseParameters(), 3, poolMaximumWait,
+				new InMemoryTableFactory());
+		Assert.assertNull(pool.getStripe("example.com"));
+		pool.createStripes(4);
+		Assert.assertEquals(pool.getStripeCount(), 4);
+		Assert.assertSame(pool.getStripe("example.com"), pool.getStripe("example.com"));
+		Assert.assertNotNull(pool.getStripe("other.example.com"));
+		// stripes aren't lent out by the pool
+		Assert.assertEquals(pool.getNumIdle(), 0);
+		Assert.assertEquals(pool.flushAll(), 4);
+		pool.close();
+		Assert.assertEquals(pool.getStripeCount(), 0);
+	}
+
+	/**
+	 * Test that a writer returned to the pool with buffered records gives
+	 * their memory back once another reservation waits for it.
+	 *
+	 * @throws Exception if the test fails
+	 */
+	@Test()
+	public void testIdleFlush() throws Exception {
+		HBaseWriterPool pool = new HBaseWriterPool(new AtomicInteger(), zkQuorum,
+				zkClientPort, new HBaseParameters(), 3, poolMaximumWait,
+				new InMemoryTableFactory());
+		MemoryBudget budget = new MemoryBudget(64 * 1024, 10000);
+		pool.setMemoryBudget(budget);
+		HBaseWriter writer = (HBaseWriter) pool.borrowFile();
+		RecordedCrawlURIs.write(writer, RecordedCrawlURIs.newCrawlURI(
+				"http://example.com/", 200, "text/html", new byte[1024]), WriteScope.ALL);
+		pool.returnFile(writer);
+		Assert.assertTrue(writer.getPendingBytes() > 0);
+		Assert.assertEquals(pool.flushIdle(Long.MAX_VALUE), 0);
+
+		// the whole budget is only free once the idle writer is flushed
+		Assert.assertTrue(budget.reserve(budget.getMaxBytes()));
+		Assert.assertEquals(budget.getForcedCount(), 0);
+		Assert.assertEquals(writer.getPendingBytes(), 0);
+		Assert.assertEquals(pool.flushIdle(0), 0);
+		pool.close();
+	}
 }
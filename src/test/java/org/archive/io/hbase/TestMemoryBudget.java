@@ -0,0 +1,101 @@
+package org.archive.io.hbase;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * The Class TestMemoryBudget.
+ */
+public class TestMemoryBudget {
+
+	/**
+	 * Test reservations within budget and the peak usage.
+	 *
+	 * @throws InterruptedException if interrupted
+	 */
+	@Test()
+	public void testReserveAndRelease() throws InterruptedException {
+		MemoryBudget budget = new MemoryBudget(100, 10);
+		Assert.assertTrue(budget.reserve(60));
+		Assert.assertTrue(budget.reserve(40));
+		Assert.assertEquals(budget.getUsedBytes(), 100);
+		budget.release(100);
+		Assert.assertEquals(budget.getUsedBytes(), 0);
+		Assert.assertEquals(budget.getPeakBytes(), 100);
+		Assert.assertEquals(budget.getWaitCount(), 0);
+	}
+
+	/**
+	 * Test that an exhausted budget forces the reservation after the wait.
+	 *
+	 * @throws InterruptedException if interrupted
+	 */
+	@Test()
+	public void testForcedAfterWait() throws InterruptedException {
+		MemoryBudget budget = new MemoryBudget(100, 10);
+		Assert.assertTrue(budget.reserve(100));
+		Assert.assertFalse(budget.reserve(1));
+		Assert.assertEquals(budget.getUsedBytes(), 101);
+		Assert.assertEquals(budget.getWaitCount(), 1);
+		Assert.assertEquals(budget.getForcedCount(), 1);
+	}
+
+	/**
+	 * Test that a release wakes up a waiting reservation.
+	 *
+	 * @throws InterruptedException if interrupted
+	 */
+	@Test()
+	public void testReleaseWakesWaiter() throws InterruptedException {
+		final MemoryBudget budget = new MemoryBudget(100, 10000);
+		Assert.assertTrue(budget.reserve(100));
+		Thread releaser = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+				budget.release(100);
+			}
+		};
+		releaser.start();
+		// larger than the budget, only needs the budget to be empty
+		Assert.assertTrue(budget.reserve(500));
+		releaser.join();
+		Assert.assertEquals(budget.getUsedBytes(), 500);
+		Assert.assertEquals(budget.getForcedCount(), 0);
+	}
+
+	/**
+	 * Test that a reservation without waiting fails on an exhausted budget
+	 * and that waiting reservations are counted while they wait.
+	 *
+	 * @throws InterruptedException if interrupted
+	 */
+	@Test()
+	public void testTryReserveAndWaiting() throws InterruptedException {
+		final MemoryBudget budget = new MemoryBudget(100, 10000);
+		Assert.assertTrue(budget.tryReserve(100));
+		Assert.assertFalse(budget.tryReserve(1));
+		Assert.assertEquals(budget.getUsedBytes(), 100);
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					budget.reserve(1);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		};
+		waiter.start();
+		while (budget.getWaitingCount() == 0) {
+			Thread.sleep(1);
+		}
+		budget.release(100);
+		waiter.join();
+		Assert.assertEquals(budget.getWaitingCount(), 0);
+		Assert.assertEquals(budget.getUsedBytes(), 1);
+		Assert.assertEquals(budget.getForcedCount(), 0);
+	}
+}
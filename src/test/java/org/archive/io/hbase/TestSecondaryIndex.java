@@ -0,0 +1,192 @@
+package org.archive.io.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+
+/**
+ * The Class TestSecondaryIndex.
+ */
+public class TestSecondaryIndex {
+
+	/**
+	 * Test the index row key round trip and the indexed values.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testIndexKeys() throws IOException {
+		byte[] rowKey = HBaseWriter.createURLKey("http://www.example.com/a.pdf");
+		byte[] indexKey = SecondaryIndex.createIndexKey(SecondaryIndex.encodeStatus(503), rowKey);
+		Assert.assertEquals(SecondaryIndex.getUrlRowKey(indexKey), rowKey);
+
+		CrawlURI curi = newCrawlURI("http://www.example.com/a.pdf", 503,
+				"Application/PDF; charset=binary");
+		Assert.assertEquals(Bytes.toString(SecondaryIndex.getValue(
+				SecondaryIndex.Kind.HOST, curi, rowKey)), "com.example.www");
+		Assert.assertEquals(Bytes.toString(SecondaryIndex.getValue(
+				SecondaryIndex.Kind.MIME_TYPE, curi, rowKey)), "application/pdf");
+		Assert.assertEquals(SecondaryIndex.decodeStatus(SecondaryIndex.getValue(
+				SecondaryIndex.Kind.STATUS, curi, rowKey)), 503);
+	}
+
+	/**
+	 * Test that encoded statuses sort as the statuses do, negative crawler
+	 * statuses included.
+	 */
+	@Test()
+	public void testStatusOrder() {
+		int[] statuses = { Integer.MIN_VALUE, -5000, -404, -61, -1, 0, 1, 50, 200,
+				404, 500, 503, 1000, Integer.MAX_VALUE };
+		for (int i = 0; i < statuses.length; i++) {
+			byte[] value = SecondaryIndex.encodeStatus(statuses[i]);
+			Assert.assertEquals(value.length, 10);
+			Assert.assertEquals(SecondaryIndex.decodeStatus(value), statuses[i]);
+			if (i > 0) {
+				Assert.assertTrue(Bytes.compareTo(SecondaryIndex.encodeStatus(
+						statuses[i - 1]), value) < 0);
+			}
+		}
+	}
+
+	/**
+	 * Test that value and range scans find exactly the matching records.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testScans() throws IOException {
+		InMemoryTable table = new InMemoryTable("status");
+		HTableInterface client = table.newClient();
+		SecondaryIndex index = new SecondaryIndex(SecondaryIndex.Kind.STATUS,
+				client, new HBaseParameters());
+		int[] statuses = { 200, 404, 500, 503, 200, 50, -404 };
+		for (int i = 0; i < statuses.length; i++) {
+			String url = "http://example.com/" + i;
+			index.add(newCrawlURI(url, statuses[i], "text/html"),
+					HBaseWriter.createURLKey(url), 1000L, null);
+		}
+		client.put(index.getPendingPuts());
+		Assert.assertEquals(table.getRowCount(), statuses.length);
+
+		Assert.assertEquals(count(client.getScanner(SecondaryIndex.createStatusRangeScan(200, 201))), 2);
+		Assert.assertEquals(count(client.getScanner(SecondaryIndex.createStatusRangeScan(50, 51))), 1);
+		Assert.assertEquals(count(client.getScanner(SecondaryIndex.createStatusRangeScan(500, 600))), 2);
+		Assert.assertEquals(count(client.getScanner(SecondaryIndex.createStatusRangeScan(-1000, 100))), 2);
+	}
+
+	/**
+	 * Test that the index row of a status a url no longer has is filtered
+	 * out by the reader.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testRewrittenStatus() throws IOException {
+		HBaseParameters parameters = new HBaseParameters();
+		parameters.setStatusIndexTableName("status");
+		parameters.setUseFetchTimestamp(true);
+		InMemoryTableFactory tables = new InMemoryTableFactory();
+		HBaseWriter writer = new HBaseWriter(null, parameters, tables);
+		HBaseReader reader = new HBaseReader(null, parameters, tables);
+		String url = "http://example.com/";
+		int[] statuses = { 404, 200 };
+		for (int i = 0; i < statuses.length; i++) {
+			CrawlURI curi = RecordedCrawlURIs.newCrawlURI(url, statuses[i], "text/html",
+					Bytes.toBytes("content " + i));
+			curi.setFetchBeginTime(1000L * (i + 1));
+			RecordedCrawlURIs.write(writer, curi, WriteScope.ALL);
+		}
+		writer.flushCommits();
+		writer.close();
+
+		HTableInterface client = tables.createTable(null, "status", parameters);
+		// the index is append-only, both statuses have a row
+		Assert.assertEquals(tables.getTable("status").getRowCount(), 2);
+		Assert.assertEquals(reader.getCurrent(SecondaryIndex.Kind.STATUS,
+				rowKeys(client.getScanner(SecondaryIndex.createStatusRangeScan(404, 405)))).size(), 0);
+		List<HBaseRecord> current = reader.getCurrent(SecondaryIndex.Kind.STATUS,
+				rowKeys(client.getScanner(SecondaryIndex.createStatusRangeScan(200, 201))));
+		Assert.assertEquals(current.size(), 1);
+		Assert.assertEquals(current.get(0).getStatus(), 200);
+		reader.close();
+	}
+
+	/**
+	 * Test that an unchanged revisit with another status updates the status
+	 * index, and only the status index.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testRevisitStatus() throws IOException {
+		HBaseParameters parameters = new HBaseParameters();
+		parameters.setStatusIndexTableName("status");
+		parameters.setMimeTypeIndexTableName("mime");
+		parameters.setRevisitMode(true);
+		parameters.setUseFetchTimestamp(true);
+		InMemoryTableFactory tables = new InMemoryTableFactory();
+		HBaseWriter writer = new HBaseWriter(null, parameters, tables);
+		HBaseReader reader = new HBaseReader(null, parameters, tables);
+		String url = "http://example.com/";
+		int[] statuses = { 200, 404 };
+		for (int i = 0; i < statuses.length; i++) {
+			CrawlURI curi = RecordedCrawlURIs.newCrawlURI(url, statuses[i], "text/html",
+					Bytes.toBytes("unchanged"));
+			curi.setFetchBeginTime(1000L * (i + 1));
+			RecordedCrawlURIs.write(writer, curi, WriteScope.ALL);
+			writer.flushCommits();
+		}
+		writer.close();
+		Assert.assertTrue(reader.get(url).isRevisit());
+
+		HTableInterface client = tables.createTable(null, "status", parameters);
+		Assert.assertEquals(tables.getTable("status").getRowCount(), 2);
+		Assert.assertEquals(tables.getTable("mime").getRowCount(), 1);
+		Assert.assertEquals(reader.getCurrent(SecondaryIndex.Kind.STATUS,
+				rowKeys(client.getScanner(SecondaryIndex.createStatusRangeScan(200, 201)))).size(), 0);
+		List<HBaseRecord> current = reader.getCurrent(SecondaryIndex.Kind.STATUS,
+				rowKeys(client.getScanner(SecondaryIndex.createStatusRangeScan(404, 405))));
+		Assert.assertEquals(current.size(), 1);
+		Assert.assertEquals(current.get(0).getStatus(), 404);
+		reader.close();
+	}
+
+	private static List<byte[]> rowKeys(ResultScanner scanner) throws IOException {
+		List<byte[]> rowKeys = new ArrayList<byte[]>();
+		for (Result result = scanner.next(); result != null; result = scanner.next()) {
+			rowKeys.add(result.getRow());
+		}
+		scanner.close();
+		return rowKeys;
+	}
+
+	private static int count(ResultScanner scanner) throws IOException {
+		int n = 0;
+		for (Result result = scanner.next(); result != null; result = scanner.next()) {
+			Assert.assertEquals(Bytes.toString(SecondaryIndex.getUrlRowKey(
+					result.getRow())).substring(0, 12), "com.example/");
+			n++;
+		}
+		scanner.close();
+		return n;
+	}
+
+	private static CrawlURI newCrawlURI(String url, int status, String contentType)
+			throws IOException {
+		CrawlURI curi = new CrawlURI(UURIFactory.getInstance(url));
+		curi.setFetchStatus(status);
+		curi.setContentType(contentType);
+		return curi;
+	}
+}
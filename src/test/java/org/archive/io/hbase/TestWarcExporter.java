@@ -0,0 +1,190 @@
+package org.archive.io.hbase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.IOUtils;
+import org.archive.io.warc.WARCConstants;
+import org.archive.util.Base32;
+
+/**
+ * The Class TestWarcExporter.
+ */
+public class TestWarcExporter {
+
+	/** The parameters. */
+	HBaseParameters parameters = new HBaseParameters();
+
+	/** The tables. */
+	InMemoryTableFactory tables;
+
+	/** The output dir. */
+	File outputDir;
+
+	/**
+	 * Store records of three hosts, two fetched at time 1000 and one at 2000.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@BeforeMethod()
+	public void createTables() throws IOException {
+		tables = new InMemoryTableFactory();
+		HTableInterface urlTable = tables.createTable(null,
+				parameters.getUrlTableName(), parameters);
+		HTableInterface contentTable = tables.createTable(null,
+				parameters.getContentTableName(), parameters);
+		byte[] curi = Bytes.toBytes(parameters.getCuriColumnFamily());
+		byte[] content = Bytes.toBytes(parameters.getContentColumnFamily());
+		String[] urls = { "http://a.example.com/1", "http://a.example.com/2",
+				"http://www.b.example.com/", "http://c.example.org/" };
+		long[] times = { 1000L, 1000L, 1000L, 2000L };
+		for (int i = 0; i < urls.length; i++) {
+			// a.example.com pages share their content
+			byte[] body = Bytes.toBytes("body " + Math.max(i, 1));
+			byte[] hashKey = HBaseWriter.createHashKey(body);
+			urlTable.put(new Put(HBaseWriter.createURLKey(urls[i]), times[i])
+					.add(curi, Bytes.toBytes(parameters.getUrlColumnName()), Bytes.toBytes(urls[i]))
+					.add(curi, Bytes.toBytes(parameters.getStatusColumnName()), Bytes.toBytes(200))
+					.add(curi, Bytes.toBytes(parameters.getFetchTimeColumnName()), Bytes.toBytes(times[i]))
+					.add(curi, Bytes.toBytes(parameters.getIpColumnName()), Bytes.toBytes("127.0.0.1"))
+					.add(curi, Bytes.toBytes(parameters.getRequestColumnName()),
+							Bytes.toBytes("GET / HTTP/1.1\r\n\r\n"))
+					.add(curi, Bytes.toBytes(parameters.getResponseColumnName()),
+							Bytes.toBytes("HTTP/1.1 200 OK\r\n\r\n"))
+					.add(curi, Bytes.toBytes(parameters.getHashColumnName()), hashKey));
+			contentTable.put(new Put(hashKey, times[i])
+					.add(content, Bytes.toBytes(parameters.getContentColumnName()), body));
+		}
+		outputDir = new File(System.getProperty("java.io.tmpdir"),
+				"TestWarcExporter-" + System.nanoTime());
+	}
+
+	/**
+	 * Test an export of everything in parallel splits.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testExportAll() throws IOException {
+		WarcExporter exporter = newExporter();
+		exporter.setSplitKeys(Arrays.asList(Bytes.toBytes("com.example.b"),
+				Bytes.toBytes("org")));
+		Assert.assertEquals(exporter.getSplits().size(), 3);
+		Assert.assertEquals(exporter.export(), 4);
+		Assert.assertEquals(exporter.getRequestCount(), 4);
+		Assert.assertEquals(exporter.getSkippedCount(), 0);
+		Assert.assertEquals(exporter.getFileCount(), 3);
+		Assert.assertEquals(outputDir.listFiles().length, 3);
+		// the shared content was fetched once
+		Assert.assertEquals(tables.getTable(parameters.getContentTableName())
+				.getCallCount("get"), 3);
+	}
+
+	/**
+	 * Test the host and time range filters.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testFilters() throws IOException {
+		WarcExporter exporter = newExporter();
+		exporter.setHostRange("example.com", "a.example.com");
+		Assert.assertEquals(exporter.export(), 2);
+
+		exporter = newExporter();
+		exporter.setHostRange("b.example.com", null);
+		Assert.assertEquals(exporter.export(), 2);
+
+		exporter = newExporter();
+		exporter.setTimeRange(1500L, 2500L);
+		Assert.assertEquals(exporter.export(), 1);
+	}
+
+	/**
+	 * Test that revisits become revisit records, exported along with the
+	 * full capture they refer to when it is in the time range too, also when
+	 * the content was stored before the time range, and that rows without
+	 * content are counted as skipped.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testRevisitsAndSkips() throws IOException {
+		HTableInterface urlTable = tables.createTable(null,
+				parameters.getUrlTableName(), parameters);
+		byte[] curi = Bytes.toBytes(parameters.getCuriColumnFamily());
+		urlTable.put(new Put(HBaseWriter.createURLKey("http://c.example.org/"), 3000L)
+				.add(curi, Bytes.toBytes(parameters.getStatusColumnName()), Bytes.toBytes(200))
+				.add(curi, Bytes.toBytes(parameters.getFetchTimeColumnName()), Bytes.toBytes(3000L))
+				.add(curi, Bytes.toBytes(parameters.getRevisitColumnName()), Bytes.toBytes(3000L)));
+		// written with a metadata scope, without a hash
+		urlTable.put(new Put(HBaseWriter.createURLKey("http://d.example.org/"), 3000L)
+				.add(curi, Bytes.toBytes(parameters.getUrlColumnName()),
+						Bytes.toBytes("http://d.example.org/"))
+				.add(curi, Bytes.toBytes(parameters.getStatusColumnName()), Bytes.toBytes(200))
+				.add(curi, Bytes.toBytes(parameters.getFetchTimeColumnName()), Bytes.toBytes(3000L)));
+
+		outputDir = new File(outputDir, "all");
+		WarcExporter exporter = newExporter();
+		exporter.setCompress(false);
+		Assert.assertEquals(exporter.export(), 4);
+		Assert.assertEquals(exporter.getRevisitCount(), 1);
+		Assert.assertEquals(exporter.getSkippedCount(), 1);
+
+		// the capture at 2000 is exported with the payload of the revisit
+		String warcs = "";
+		for (File file : outputDir.listFiles()) {
+			warcs += readWarc(file);
+		}
+		Assert.assertTrue(warcs.contains("body 3"));
+		Assert.assertTrue(warcs.contains("WARC-Type: revisit"));
+
+		outputDir = new File(outputDir.getParentFile(), "revisits");
+		exporter = newExporter();
+		exporter.setCompress(false);
+		exporter.setTimeRange(2500L, 3500L);
+		Assert.assertEquals(exporter.export(), 0);
+		Assert.assertEquals(exporter.getRevisitCount(), 1);
+		Assert.assertEquals(exporter.getSkippedCount(), 1);
+
+		// the revisit record refers to the content of the last full capture
+		warcs = "";
+		for (File file : outputDir.listFiles()) {
+			warcs += readWarc(file);
+		}
+		Assert.assertTrue(warcs.contains("WARC-Type: revisit"));
+		Assert.assertTrue(warcs.contains(WARCConstants.PROFILE_REVISIT_IDENTICAL_DIGEST));
+		Assert.assertTrue(warcs.contains("sha1:"
+				+ Base32.encode(HBaseWriter.createHashKey(Bytes.toBytes("body 3")))));
+	}
+
+	private String readWarc(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			IOUtils.copyBytes(in, out, 4096, false);
+			return Bytes.toString(out.toByteArray());
+		} finally {
+			in.close();
+		}
+	}
+
+	private WarcExporter newExporter() {
+		WarcExporter exporter = new WarcExporter(null, parameters, tables);
+		exporter.setOutputDir(outputDir);
+		exporter.setThreads(2);
+		exporter.setBatchSize(2);
+		return exporter;
+	}
+}
@@ -0,0 +1,95 @@
+package org.archive.io.hbase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import org.archive.modules.CrawlURI;
+
+/**
+ * The Class TestWriteRule.
+ */
+public class TestWriteRule {
+
+	/**
+	 * Test status range parsing, including negative crawler statuses.
+	 */
+	@Test()
+	public void testParseStatuses() {
+		Assert.assertNull(WriteRule.parseStatuses(" "));
+		Assert.assertEquals(WriteRule.parseStatuses("404, 500-599,-1"),
+				new int[] { 404, 404, 500, 599, -1, -1 });
+		try {
+			WriteRule.parseStatuses("4xx");
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			Assert.assertNotNull(e);
+		}
+	}
+
+	/**
+	 * Test that the first matching rule decides and unmatched records are
+	 * written whole.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testFirstMatchWins() throws IOException {
+		WriteRule errors = new WriteRule();
+		errors.setStatuses("400-599");
+		errors.setScope(WriteScope.HEADERS);
+		WriteRule media = new WriteRule();
+		media.setContentTypeRegex("(image|video)/.*");
+		media.setMinContentSize(1000);
+		media.setScope(WriteScope.METADATA);
+		WriteRule host = new WriteRule();
+		host.setHostRegex("(.*\\.)?ads\\.example\\.com");
+		host.setScope(WriteScope.METADATA);
+		List<WriteRule> rules = Arrays.asList(errors, media, host);
+
+		Assert.assertEquals(WriteRule.getScope(rules,
+				newCrawlURI("http://example.com/", 404, "image/png", 5000)), WriteScope.HEADERS);
+		Assert.assertEquals(WriteRule.getScope(rules,
+				newCrawlURI("http://example.com/", 200, "Image/PNG; q=1", 5000)), WriteScope.METADATA);
+		Assert.assertEquals(WriteRule.getScope(rules,
+				newCrawlURI("http://example.com/", 200, "image/png", 500)), WriteScope.ALL);
+		Assert.assertEquals(WriteRule.getScope(rules,
+				newCrawlURI("http://x.ads.example.com/", 200, "text/html", 500)), WriteScope.METADATA);
+		Assert.assertEquals(WriteRule.getScope(rules,
+				newCrawlURI("http://example.com/", 200, null, 500)), WriteScope.ALL);
+		Assert.assertEquals(WriteRule.getScope(null,
+				newCrawlURI("http://example.com/", 404, null, 500)), WriteScope.ALL);
+	}
+
+	/**
+	 * Test that sizes are matched against the content, not the whole
+	 * recording with its headers.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testContentLength() throws IOException {
+		WriteRule large = new WriteRule();
+		large.setMinContentSize(1000);
+		large.setScope(WriteScope.METADATA);
+		CrawlURI curi = newCrawlURI("http://example.com/", 200, "text/html", 990);
+		// the recording with its headers is over the minimum
+		Assert.assertTrue(curi.getContentSize() > 1000);
+		Assert.assertFalse(large.matches(curi));
+		curi = newCrawlURI("http://example.com/", 200, "text/html", 1000);
+		Assert.assertTrue(large.matches(curi));
+	}
+
+	private static CrawlURI newCrawlURI(String url, int status, String contentType,
+			int size) throws IOException {
+		CrawlURI curi = RecordedCrawlURIs.newCrawlURI(url, status, contentType,
+				new byte[size]);
+		// the CrawlURI keeps the length once the recorder is cleaned up
+		curi.getContentLength();
+		curi.getRecorder().cleanup();
+		return curi;
+	}
+}
@@ -0,0 +1,251 @@
+package org.archive.modules.writer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+import org.archive.io.hbase.InMemoryTable;
+import org.archive.io.hbase.InMemoryTableFactory;
+import org.archive.io.hbase.LatencyHistogram;
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+import org.archive.util.Recorder;
+
+/**
+ * Pushes synthetic CrawlURIs through
+ * {@link HBaseWriterProcessor#innerProcessResult(CrawlURI)} from a number
+ * of threads, against {@link InMemoryTable}s, and reports throughput,
+ * latency percentiles and allocation rate.
+ *
+ * Run from the command line with:
+ *
+ * <pre>
+ * HBaseWriterLoadGenerator [threads [recordsPerThread [contentSize [hosts [latencyMs]]]]]
+ * </pre>
+ *
+ * where latencyMs is injected into every table call.
+ *
+ * @see TestHBaseWriterLoadGenerator
+ */
+public class HBaseWriterLoadGenerator {
+
+	private static final Logger LOG = Logger.getLogger(HBaseWriterLoadGenerator.class.getName());
+
+	/**
+	 * A processor that doesn't need a server cache to name the fetched IP.
+	 */
+	static class LoadProcessor extends HBaseWriterProcessor {
+		@Override
+		protected String getHostAddress(CrawlURI curi) {
+			return "127.0.0.1";
+		}
+	}
+
+	int threads = 8;
+	int recordsPerThread = 1000;
+	int contentSize = 16 * 1024;
+	int hosts = 100;
+	/** fraction of records repeating content already written */
+	double duplicateRate = 0.2;
+
+	final InMemoryTableFactory tables = new InMemoryTableFactory();
+	final HBaseWriterProcessor processor;
+	final File scratchDir;
+
+	final LatencyHistogram latencies = new LatencyHistogram();
+	final AtomicLong failures = new AtomicLong();
+	final AtomicLong allocatedBytes = new AtomicLong();
+	long elapsedNanos;
+
+	public HBaseWriterLoadGenerator() {
+		this.processor = new LoadProcessor();
+		this.processor.setTableFactory(tables);
+		this.scratchDir = new File(System.getProperty("java.io.tmpdir"),
+				"HBaseWriterLoadGenerator-" + System.currentTimeMillis());
+	}
+
+	/**
+	 * Run the load and wait for it to finish.
+	 *
+	 * @throws Exception if the run can't be set up
+	 */
+	public void run() throws Exception {
+		scratchDir.mkdirs();
+		processor.setPoolMaxActive(threads);
+		processor.start();
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		List<Thread> workers = new ArrayList<Thread>(threads);
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			Thread worker = new Thread("load-" + t) {
+				public void run() {
+					try {
+						startSignal.await();
+						generate(thread);
+					} catch (Exception e) {
+						failures.incrementAndGet();
+						LOG.error("Load thread " + thread + " failed: " + e.getMessage(), e);
+					}
+				}
+			};
+			worker.start();
+			workers.add(worker);
+		}
+		long start = System.nanoTime();
+		startSignal.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		processor.stop();
+		elapsedNanos = System.nanoTime() - start;
+		scratchDir.delete();
+	}
+
+	void generate(int thread) throws IOException {
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		long allocatedBefore = allocated(mx);
+		Random random = new Random(thread);
+		for (int i = 0; i < recordsPerThread; i++) {
+			CrawlURI curi = newCrawlURI(random, thread, i);
+			long start = System.nanoTime();
+			try {
+				processor.innerProcessResult(curi);
+			} finally {
+				latencies.add(System.nanoTime() - start);
+				curi.getRecorder().cleanup();
+			}
+			if (!curi.getNonFatalFailures().isEmpty()) {
+				failures.incrementAndGet();
+			}
+		}
+		allocatedBytes.addAndGet(allocated(mx) - allocatedBefore);
+	}
+
+	/**
+	 * Make a fetched CrawlURI with a recorded request and response. ftp URIs
+	 * are used because WriterPoolProcessor only asks them for a 200 status,
+	 * while http ones also need the fetcher's transaction record.
+	 */
+	CrawlURI newCrawlURI(Random random, int thread, int i) throws IOException {
+		String host = "host" + random.nextInt(hosts) + ".example.com";
+		String url = "ftp://" + host + "/t" + thread + "/r" + i;
+		CrawlURI curi = new CrawlURI(UURIFactory.getInstance(url));
+		curi.setFetchStatus(200);
+		curi.setFetchBeginTime(System.currentTimeMillis());
+		curi.setContentType("text/html");
+
+		byte[] content = new byte[contentSize];
+		if (random.nextDouble() < duplicateRate) {
+			// shared by all threads, so it dedups in the content table
+			new Random(random.nextInt(10)).nextBytes(content);
+		} else {
+			random.nextBytes(content);
+		}
+		byte[] request = Bytes.toBytes("RETR /t" + thread + "/r" + i + "\r\n");
+		byte[] headers = Bytes.toBytes("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n"
+				+ "Content-Length: " + content.length + "\r\n\r\n");
+
+		Recorder recorder = new Recorder(scratchDir, "load-" + thread + "-" + i,
+				4 * 1024, 64 * 1024);
+		OutputStream out = recorder.outputWrap(new ByteArrayOutputStream());
+		out.write(request);
+		byte[] response = new byte[headers.length + content.length];
+		System.arraycopy(headers, 0, response, 0, headers.length);
+		System.arraycopy(content, 0, response, headers.length, content.length);
+		InputStream in = recorder.inputWrap(new ByteArrayInputStream(response));
+		for (int n = 0; n < headers.length; n++) {
+			in.read();
+		}
+		recorder.markContentBegin();
+		byte[] buffer = new byte[8 * 1024];
+		while (in.read(buffer) != -1) {
+			// recorded as it is read
+		}
+		recorder.close();
+		curi.setRecorder(recorder);
+		curi.setContentSize(response.length);
+		return curi;
+	}
+
+	static long allocated(ThreadMXBean mx) {
+		if (mx instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) mx)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	public long getRecordCount() {
+		return (long) threads * recordsPerThread;
+	}
+
+	public double getRecordsPerSecond() {
+		return getRecordCount() / (elapsedNanos / 1e9);
+	}
+
+	public String report() {
+		double seconds = elapsedNanos / 1e9;
+		StringBuilder sb = new StringBuilder();
+		sb.append(getRecordCount()).append(" records from ").append(threads)
+				.append(" threads in ").append(String.format("%.2f", seconds)).append(" s: ")
+				.append(String.format("%.0f", getRecordsPerSecond())).append(" records/s, ")
+				.append(failures.get()).append(" failed\n");
+		sb.append("latency us: p50 ").append(latencies.getPercentileMicros(0.5))
+				.append(", p90 ").append(latencies.getPercentileMicros(0.9))
+				.append(", p99 ").append(latencies.getPercentileMicros(0.99))
+				.append(", p99.9 ").append(latencies.getPercentileMicros(0.999))
+				.append(", max ").append(latencies.getMaxMicros()).append('\n');
+		sb.append("allocated: ").append(allocatedBytes.get() / getRecordCount())
+				.append(" bytes/record, ")
+				.append(String.format("%.1f", allocatedBytes.get() / seconds / (1024 * 1024)))
+				.append(" MB/s\n");
+		for (String table : new String[] {
+				processor.getHbaseParameters().getUrlTableName(),
+				processor.getHbaseParameters().getContentTableName() }) {
+			InMemoryTable t = tables.getTable(table);
+			sb.append("table ").append(table).append(": ").append(t.getRowCount())
+					.append(" rows, ").append(t.getCallCount("put")).append(" puts, ")
+					.append(t.getCallCount("checkAndPut")).append(" checkAndPuts\n");
+		}
+		return sb.toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		HBaseWriterLoadGenerator generator = new HBaseWriterLoadGenerator();
+		if (args.length > 0) {
+			generator.threads = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			generator.recordsPerThread = Integer.parseInt(args[1]);
+		}
+		if (args.length > 2) {
+			generator.contentSize = Integer.parseInt(args[2]);
+		}
+		if (args.length > 3) {
+			generator.hosts = Integer.parseInt(args[3]);
+		}
+		if (args.length > 4) {
+			long latencyMs = Long.parseLong(args[4]);
+			for (String table : new String[] {
+					generator.processor.getHbaseParameters().getUrlTableName(),
+					generator.processor.getHbaseParameters().getContentTableName() }) {
+				generator.tables.getTable(table).setProfile("*",
+						new InMemoryTable.Profile(latencyMs, latencyMs, 0));
+			}
+		}
+		generator.run();
+		System.out.print(generator.report());
+	}
+}
@@ -0,0 +1,75 @@
+package org.archive.modules.writer;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import org.archive.io.hbase.InMemoryTable;
+
+/**
+ * The Class TestHBaseWriterLoadGenerator.
+ */
+public class TestHBaseWriterLoadGenerator {
+
+	/**
+	 * Test a small run writes every url and dedups repeated content.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test()
+	public void testSmallRun() throws Exception {
+		HBaseWriterLoadGenerator generator = new HBaseWriterLoadGenerator();
+		generator.threads = 4;
+		generator.recordsPerThread = 50;
+		generator.contentSize = 1024;
+		generator.run();
+
+		Assert.assertEquals(generator.failures.get(), 0, generator.report());
+		Assert.assertEquals(generator.latencies.getCount(), 200);
+		InMemoryTable urls = generator.tables.getTable(
+				generator.processor.getHbaseParameters().getUrlTableName());
+		InMemoryTable content = generator.tables.getTable(
+				generator.processor.getHbaseParameters().getContentTableName());
+		Assert.assertEquals(urls.getRowCount(), 200);
+		Assert.assertTrue(content.getRowCount() > 0);
+		Assert.assertTrue(content.getRowCount() < 200);
+	}
+
+	/**
+	 * Test a small run with writers striped by host writes every url.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test()
+	public void testStripedRun() throws Exception {
+		HBaseWriterLoadGenerator generator = new HBaseWriterLoadGenerator();
+		generator.threads = 4;
+		generator.recordsPerThread = 50;
+		generator.contentSize = 1024;
+		generator.processor.setHostStripes(4);
+		generator.run();
+
+		Assert.assertEquals(generator.failures.get(), 0, generator.report());
+		InMemoryTable urls = generator.tables.getTable(
+				generator.processor.getHbaseParameters().getUrlTableName());
+		Assert.assertEquals(urls.getRowCount(), 200);
+	}
+
+	/**
+	 * Test that injected content table failures are reported, not lost.
+	 *
+	 * @throws Exception the exception
+	 */
+	@Test()
+	public void testInjectedFailures() throws Exception {
+		HBaseWriterLoadGenerator generator = new HBaseWriterLoadGenerator();
+		generator.threads = 2;
+		generator.recordsPerThread = 20;
+		generator.contentSize = 1024;
+		generator.tables.getTable(
+				generator.processor.getHbaseParameters().getContentTableName())
+				.setProfile("checkAndPut", new InMemoryTable.Profile(0, 0, 1.0));
+		generator.run();
+
+		Assert.assertEquals(generator.failures.get(), 40);
+	}
+}
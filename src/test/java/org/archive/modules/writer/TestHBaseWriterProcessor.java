@@ -1,10 +1,27 @@
 package org.archive.modules.writer;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import org.apache.hadoop.hbase.util.Bytes;
+import org.archive.checkpointing.Checkpoint;
+import org.archive.io.hbase.HBaseParameters;
+import org.archive.io.hbase.HBaseWriterPool;
+import org.archive.io.hbase.InMemoryTableFactory;
+import org.archive.io.hbase.RecordedCrawlURIs;
+import org.archive.modules.CrawlURI;
 import org.archive.modules.writer.HBaseWriterProcessor;
+import org.json.JSONObject;
 
 /**
  * The Class TestHBaseWriterProcessor.
@@ -34,6 +51,123 @@ public class TestHBaseWriterProcessor {
 		Assert.assertNotNull(hwproc);
 		Assert.assertEquals(hwproc.getURICount(), 0);
 	}
-	
-	
+
+	/**
+	 * Test that the shared caches saved by a checkpoint are restored into
+	 * the pool of a processor resumed from it.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testCheckpointRestoresCaches() throws IOException {
+		InMemoryTableFactory tables = new InMemoryTableFactory();
+		MemoryCheckpoint checkpoint = new MemoryCheckpoint();
+
+		HBaseWriterProcessor crawled = newProcessor(tables);
+		crawled.start();
+		HBaseWriterPool pool = (HBaseWriterPool) crawled.getPool();
+		pool.getDigestCache().put("com.example/a", Bytes.toBytes("a"));
+		pool.getDigestCache().put("com.example/b", Bytes.toBytes("b"));
+		pool.getChunkCache().put("chunk", Bytes.toBytes("c"));
+		crawled.doCheckpoint(checkpoint);
+		crawled.stop();
+
+		HBaseWriterProcessor resumed = newProcessor(tables);
+		resumed.setRecoveryCheckpoint(checkpoint);
+		resumed.start();
+		pool = (HBaseWriterPool) resumed.getPool();
+		Assert.assertEquals(pool.getDigestCache().size(), 2);
+		Assert.assertEquals(Bytes.toString(pool.getDigestCache().get("com.example/b")), "b");
+		Assert.assertEquals(pool.getChunkCache().size(), 1);
+		resumed.stop();
+	}
+
+	/**
+	 * Test that records written through host stripes count towards the total
+	 * bytes written like records written through the pool.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Test()
+	public void testStripesCountBytesWritten() throws IOException {
+		HBaseWriterProcessor pooled = newProcessor(new InMemoryTableFactory());
+		HBaseWriterProcessor striped = newProcessor(new InMemoryTableFactory());
+		striped.setHostStripes(2);
+		pooled.start();
+		striped.start();
+		try {
+			Assert.assertEquals(((HBaseWriterPool) striped.getPool()).getStripeCount(), 2);
+			for (String url : new String[] { "http://example.com/a", "http://example.org/b" }) {
+				write(pooled, url);
+				write(striped, url);
+			}
+			Assert.assertTrue(pooled.getTotalBytesWritten() > 0);
+			Assert.assertEquals(striped.getTotalBytesWritten(), pooled.getTotalBytesWritten());
+		} finally {
+			pooled.stop();
+			striped.stop();
+		}
+	}
+
+	private static void write(HBaseWriterProcessor processor, String url)
+			throws IOException {
+		CrawlURI curi = RecordedCrawlURIs.newCrawlURI(url, 200, "text/html",
+				Bytes.toBytes(url));
+		try {
+			processor.write(curi, 0, null);
+		} finally {
+			curi.getRecorder().cleanup();
+		}
+	}
+
+	private static HBaseWriterProcessor newProcessor(InMemoryTableFactory tables) {
+		HBaseWriterProcessor processor = new HBaseWriterProcessor() {
+			@Override
+			protected String getHostAddress(CrawlURI curi) {
+				return "127.0.0.1";
+			}
+		};
+		processor.setBeanName("hbaseWriterProcessor");
+		processor.setTableFactory(tables);
+		HBaseParameters parameters = new HBaseParameters();
+		parameters.setRevisitMode(true);
+		parameters.setChunkedContent(true);
+		processor.setHbaseParameters(parameters);
+		return processor;
+	}
+
+	/**
+	 * A checkpoint kept in memory.
+	 */
+	static class MemoryCheckpoint extends Checkpoint {
+		final Map<String, JSONObject> json = new HashMap<String, JSONObject>();
+		final Map<String, StringWriter> files = new HashMap<String, StringWriter>();
+
+		@Override
+		public void saveJson(String beanName, JSONObject json) {
+			this.json.put(beanName, json);
+		}
+
+		@Override
+		public JSONObject loadJson(String beanName) {
+			return json.get(beanName);
+		}
+
+		@Override
+		public BufferedWriter saveWriter(String beanName, String extraName) {
+			StringWriter file = new StringWriter();
+			files.put(beanName + "-" + extraName, file);
+			return new BufferedWriter(file);
+		}
+
+		@Override
+		public BufferedReader loadReader(String beanName, String extraName)
+				throws IOException {
+			StringWriter file = files.get(beanName + "-" + extraName);
+			if (file == null) {
+				throw new FileNotFoundException(beanName + "-" + extraName);
+			}
+			return new BufferedReader(new StringReader(file.toString()));
+		}
+	}
 }